@@ -0,0 +1,106 @@
+package com.github.upelsin.streamProxy;
+
+/**
+ * Picks size of chunks relayed to the client, within bounds, from what the relay loop observes.
+ * <p>
+ * Chunks grow while reads keep filling them and the client takes them without delay, e.g. for high
+ * bitrate media over a fast link, so fewer iterations, writes and flushes are spent per byte.
+ * They shrink while reads keep returning a fraction of them, e.g. for low bitrate audio, or when
+ * the client drains slowly, so less memory sits in buffers and each blocking write is shorter.
+ * Chunks only grow if there's room in the memory budget, which must be given back with {@link #release()}.
+ */
+class ChunkSizer {
+
+    static final int DEFAULT_MIN_CHUNK_SIZE = 4 * 1024;
+
+    static final int DEFAULT_MAX_CHUNK_SIZE = 256 * 1024;
+
+    static final int INITIAL_CHUNK_SIZE = 16 * 1024;
+
+    /** Consecutive full reads required to grow. */
+    private static final int GROW_AFTER = 2;
+
+    /** Consecutive small reads required to shrink. */
+    private static final int SHRINK_AFTER = 4;
+
+    private static final long FAST_WRITE_NANOS = 2 * 1000 * 1000;
+
+    private static final long SLOW_WRITE_NANOS = 50 * 1000 * 1000;
+
+    private final int minSize;
+
+    private final int maxSize;
+
+    private final MemoryBudget budget;
+
+    private int size;
+
+    private int fullReads;
+
+    private int smallReads;
+
+    ChunkSizer(int minSize, int maxSize, MemoryBudget budget) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.budget = budget;
+
+        size = minSize;
+        budget.acquire(minSize); // smallest chunk is never refused
+        resize(Math.min(maxSize, INITIAL_CHUNK_SIZE));
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param read bytes read into the last chunk
+     * @param writeNanos time spent writing the chunk to the client and flushing it
+     * @return {@code true} if chunk size has changed
+     */
+    boolean update(int read, long writeNanos) {
+        if (writeNanos > SLOW_WRITE_NANOS) {
+            return resize(size / 2);
+        }
+
+        if (read == size && writeNanos < FAST_WRITE_NANOS) {
+            smallReads = 0;
+            if (++fullReads >= GROW_AFTER) {
+                return resize(size * 2);
+            }
+        } else if (read < size / 4) {
+            fullReads = 0;
+            if (++smallReads >= SHRINK_AFTER) {
+                return resize(size / 2);
+            }
+        } else {
+            fullReads = 0;
+            smallReads = 0;
+        }
+        return false;
+    }
+
+    private boolean resize(int newSize) {
+        fullReads = 0;
+        smallReads = 0;
+        newSize = Math.max(minSize, Math.min(maxSize, newSize));
+        if (newSize == size) {
+            return false;
+        }
+        if (newSize > size && !budget.tryAcquire(newSize - size)) {
+            return false;
+        }
+        if (newSize < size) {
+            budget.release(size - newSize);
+        }
+        size = newSize;
+        return true;
+    }
+
+    /**
+     * Gives memory of the current chunk back to the budget, once relaying is over.
+     */
+    void release() {
+        budget.release(size);
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.upelsin.streamProxy;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@code ForkedStreamFactory} which makes sure only one recording per key is in progress at a time.
+ * <p>
+ * Key is taken from a query parameter of client request. While a stream for the key is open,
+ * requests for the same key are relayed without being recorded. Requests without the key
+ * are always passed to the delegate.
+ */
+public class DeduplicatingForkedStreamFactory implements ForkedStreamFactory {
+
+    private final ForkedStreamFactory delegate;
+
+    private final String keyParam;
+
+    private final ConcurrentMap<String, Object> inProgress = new ConcurrentHashMap<>();
+
+    public DeduplicatingForkedStreamFactory(ForkedStreamFactory delegate, String keyParam) {
+        this.delegate = delegate;
+        this.keyParam = keyParam;
+    }
+
+    @Override
+    public ForkedStream createForkedStream(Properties props) {
+        final String key = props.getProperty(keyParam);
+        if (key == null) {
+            return delegate.createForkedStream(props);
+        }
+
+        // identifies this very recording, a late abort() must not release the key taken by the next one
+        final Object token = new Object();
+        if (inProgress.putIfAbsent(key, token) != null) {
+            return null; // already being recorded
+        }
+
+        final ForkedStream stream;
+        try {
+            stream = delegate.createForkedStream(props);
+        } catch (RuntimeException e) {
+            inProgress.remove(key, token);
+            throw e;
+        }
+        if (stream == null) {
+            inProgress.remove(key, token);
+            return null;
+        }
+
+        return new ForkedStream() {
+            @Override
+            public void abort() {
+                inProgress.remove(key, token);
+                stream.abort();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                stream.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                stream.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                inProgress.remove(key, token);
+                stream.close();
+            }
+        };
+    }
+
+    /**
+     * @return {@code true} if stream for the key is open at the moment
+     */
+    public boolean isInProgress(String key) {
+        return inProgress.containsKey(key);
+    }
+}
@@ -0,0 +1,265 @@
+package com.github.upelsin.streamProxy;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@code ForkedStream} which fans written bytes out to several independent sinks.
+ * <p>
+ * Each sink is created by its own {@link ForkedStreamFactory} and fed from its own queue
+ * by a dedicated worker, so a slow sink stalls neither the other sinks nor the client.
+ * <p>
+ * Sinks are isolated from each other: a sink which fails to write, or falls behind
+ * by more than {@code maxBufferedBytes}, is aborted alone while the rest keep receiving data.
+ * The same happens if there's no room for more data within the proxy's memory budget.
+ * <p>
+ * Sinks are created on their workers as well, bytes written in the meantime are buffered.
+ * If a factory returns {@code null}, its share of bytes is silently dropped.
+ * <p>
+ * With backpressure, a sink which falls behind by {@code maxBufferedBytes}, or hasn't been created by then,
+ * is waited for instead of being aborted, and so is memory budget once it runs out. That slows the client
+ * down to the pace of its slowest sink, but loses nothing.
+ */
+public class FanOutForkedStream implements ForkedStream {
+
+    private static final Logger logger = Logger.getLogger(FanOutForkedStream.class.getName());
+
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private static final long BUDGET_POLL_MILLIS = 10;
+
+    private final Properties props;
+
+    private final int maxBufferedBytes;
+
+    private final MemoryBudget budget;
+
+    private final int flushBytes;
+
+    private final boolean backpressure;
+
+    private final List<Branch> branches;
+
+    public FanOutForkedStream(Executor executor, int maxBufferedBytes, Properties props,
+                              List<ForkedStreamFactory> factories) {
+        this(executor, maxBufferedBytes, new MemoryBudget(), 0, false, props, factories);
+    }
+
+    /**
+     * @param flushBytes sinks are flushed once this many bytes have been written since the last flush,
+     * zero flushes them whenever their queue has been drained
+     * @param backpressure whether {@link #write} waits for a sink which is {@code maxBufferedBytes} behind,
+     * rather than aborting it
+     */
+    FanOutForkedStream(Executor executor, int maxBufferedBytes, MemoryBudget budget, int flushBytes,
+                       boolean backpressure, Properties props, List<ForkedStreamFactory> factories) {
+        this.props = props;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.budget = budget;
+        this.flushBytes = flushBytes;
+        this.backpressure = backpressure;
+        this.branches = new ArrayList<>(factories.size());
+
+        for (ForkedStreamFactory factory : factories) {
+            Branch branch = new Branch(factory);
+            branches.add(branch);
+            executor.execute(branch);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // single copy shared by all branches, they never modify it
+        byte[] chunk = Arrays.copyOfRange(b, off, off + len);
+        try {
+            for (Branch branch : branches) {
+                branch.offer(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for forked stream");
+        }
+    }
+
+    /**
+     * Does nothing, every sink is flushed by its worker as soon as its queue is drained,
+     * or once enough bytes have been written if flushes are batched.
+     */
+    @Override
+    public void flush() throws IOException {
+    }
+
+    /**
+     * Lets every sink drain its queue and close, does not wait for that to happen.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Branch branch : branches) {
+            branch.finish();
+        }
+    }
+
+    @Override
+    public void abort() {
+        for (Branch branch : branches) {
+            branch.abort();
+        }
+    }
+
+    /**
+     * @return whether any of the sinks has been aborted, sinks which factories haven't created don't count
+     */
+    boolean isAborted() {
+        for (Branch branch : branches) {
+            if (branch.failed) return true;
+        }
+        return false;
+    }
+
+    private class Branch implements Runnable {
+
+        private final ForkedStreamFactory factory;
+
+        private final BlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+
+        /** Guarded by this branch, so that bytes are released from the budget exactly once. */
+        private long bufferedBytes;
+
+        private boolean discarded;
+
+        private volatile boolean aborted;
+
+        /** Unlike {@link #aborted}, not set when the factory hasn't created a sink. */
+        private volatile boolean failed;
+
+        private volatile ForkedStream closedSink;
+
+        Branch(ForkedStreamFactory factory) {
+            this.factory = factory;
+        }
+
+        void offer(byte[] chunk) throws InterruptedException {
+            synchronized (this) {
+                while (!aborted) {
+                    if (bufferedBytes + chunk.length <= maxBufferedBytes && budget.tryAcquire(chunk.length)) {
+                        enqueue(chunk);
+                        return;
+                    }
+                    if (!backpressure) {
+                        break;
+                    }
+                    if (bufferedBytes == 0) {
+                        budget.acquire(chunk.length); // never refused, so that the sink keeps moving
+                        enqueue(chunk);
+                        return;
+                    }
+                    // woken up once the worker writes some of it, memory freed by other buffers is polled for
+                    wait(BUDGET_POLL_MILLIS);
+                }
+                if (aborted) return;
+            }
+            logger.warning("Aborting forked stream which fell behind by more than " + maxBufferedBytes
+                    + " bytes or ran out of memory budget");
+            abort();
+        }
+
+        private void enqueue(byte[] chunk) {
+            bufferedBytes += chunk.length;
+            chunks.add(chunk);
+        }
+
+        private synchronized void written(int count) {
+            if (!discarded) {
+                bufferedBytes -= count;
+                budget.release(count);
+                notifyAll();
+            }
+        }
+
+        /**
+         * Drops whatever is still queued and releases it from the budget.
+         */
+        private synchronized void discard() {
+            aborted = true;
+            discarded = true;
+            chunks.clear();
+            budget.release(bufferedBytes);
+            bufferedBytes = 0;
+            notifyAll();
+        }
+
+        void finish() {
+            chunks.add(END_OF_STREAM);
+        }
+
+        void abort() {
+            failed = true;
+            synchronized (this) {
+                aborted = true;
+                notifyAll(); // wake up the writer
+            }
+            chunks.add(END_OF_STREAM); // wake up the worker
+
+            // sink might have been closed already, let it know about the failure anyway
+            ForkedStream sink = closedSink;
+            if (sink != null) {
+                sink.abort();
+            }
+        }
+
+        @Override
+        public void run() {
+            ForkedStream sink = null;
+            try {
+                sink = factory.createForkedStream(props);
+                if (sink == null) {
+                    discard(); // nothing to record, let writes be dropped
+                    return;
+                }
+
+                long unflushed = 0;
+                while (!aborted) {
+                    byte[] chunk = chunks.take();
+                    if (aborted) break;
+
+                    if (chunk == END_OF_STREAM) {
+                        sink.flush();
+                        sink.close();
+                        closedSink = sink;
+                        if (aborted) break; // might be called twice, but that's fine
+                        return;
+                    }
+
+                    sink.write(chunk, 0, chunk.length);
+                    written(chunk.length);
+                    unflushed += chunk.length;
+                    if (flushBytes > 0 ? unflushed >= flushBytes : chunks.isEmpty()) {
+                        sink.flush();
+                        unflushed = 0;
+                    }
+                }
+
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Exception while writing to forked stream", e);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            failed = true;
+            discard();
+            if (sink != null) {
+                sink.abort();
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.upelsin.streamProxy;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+
+/**
+ * {@code ForkedStreamFactory} which lets a single proxied stream feed several sinks at once,
+ * e.g. a recorder, a fingerprinter and an analytics sink.
+ * <p>
+ * See {@link FanOutForkedStream} for buffering and failure isolation details.
+ */
+public class FanOutForkedStreamFactory implements ForkedStreamFactory {
+
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+
+    private final Executor executor;
+
+    private final int maxBufferedBytes;
+
+    private final MemoryBudget budget;
+
+    private final int flushBytes;
+
+    private final boolean backpressure;
+
+    private final List<ForkedStreamFactory> factories;
+
+    /**
+     * @param executor runs one worker per sink for as long as its stream lasts, so it must not queue tasks
+     *                 behind each other; it's owned by the caller, who shuts it down
+     * @param maxBufferedBytes how far a sink may fall behind before it's aborted,
+     *                         see {@link #DEFAULT_MAX_BUFFERED_BYTES}
+     */
+    public FanOutForkedStreamFactory(Executor executor, int maxBufferedBytes, ForkedStreamFactory... factories) {
+        this(executor, maxBufferedBytes, new MemoryBudget(), 0, false, factories);
+    }
+
+    FanOutForkedStreamFactory(Executor executor, int maxBufferedBytes, MemoryBudget budget, int flushBytes,
+                              boolean backpressure, ForkedStreamFactory... factories) {
+        this.executor = executor;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.budget = budget;
+        this.flushBytes = flushBytes;
+        this.backpressure = backpressure;
+        this.factories = Arrays.asList(factories);
+    }
+
+    @Override
+    public ForkedStream createForkedStream(Properties props) {
+        return new FanOutForkedStream(executor, maxBufferedBytes, budget, flushBytes, backpressure, props, factories);
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.upelsin.streamProxy;
+
+import okio.Okio;
+import okio.Source;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
+
+import static com.github.upelsin.streamProxy.Utils.closeQuietly;
+
+/**
+ * Serves {@code file://} URLs of files inside the given root directory, e.g. media downloaded earlier.
+ * Files outside of it are forbidden, as anyone who can reach the proxy could read them otherwise.
+ * <p>
+ * Register with {@code proxy.setUpstreamTransport("file", new FileTransport(root))}.
+ */
+public class FileTransport extends LocalTransport {
+
+    private final File root;
+
+    public FileTransport(File root) throws IOException {
+        this.root = root.getCanonicalFile();
+    }
+
+    @Override
+    protected Resource find(String url) throws IOException {
+        File file;
+        try {
+            file = new File(new URI(url)).getCanonicalFile();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+
+        if (!file.getPath().startsWith(root.getPath() + File.separator)) {
+            throw new SecurityException("File is outside of " + root);
+        }
+        return file.isFile() ? new FileResource(file) : null;
+    }
+
+    private static class FileResource implements Resource {
+
+        private final File file;
+
+        private final long length;
+
+        private final long lastModified;
+
+        FileResource(File file) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public String contentType() {
+            return URLConnection.guessContentTypeFromName(file.getName());
+        }
+
+        @Override
+        public Source open(long offset) throws IOException {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                in.getChannel().position(offset);
+            } catch (IOException e) {
+                closeQuietly(in);
+                throw e;
+            }
+            return Okio.source(in);
+        }
+    }
+}
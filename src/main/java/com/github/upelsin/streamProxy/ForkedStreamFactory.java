@@ -7,5 +7,11 @@ import java.util.Properties;
  */
 public interface ForkedStreamFactory {
 
+    /**
+     * Called off the serving thread, so slow setup doesn't delay the client.
+     *
+     * @param props query parameters of client request
+     * @return stream to fork response to, or {@code null} if it should not be recorded, e.g. it already is
+     */
     ForkedStream createForkedStream(Properties props);
 }
@@ -0,0 +1,37 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.Response;
+import okio.GzipSource;
+import okio.Source;
+
+import java.util.Properties;
+
+/**
+ * Decodes gzip-encoded responses for clients which asked for compression
+ * but are unable to handle it, as some media players do.
+ */
+public class GzipDecodingTransformerFactory implements StreamTransformerFactory {
+
+    @Override
+    public StreamTransformer createTransformer(Response response, Properties props) {
+        if (!"gzip".equalsIgnoreCase(response.header("Content-Encoding"))) {
+            return null;
+        }
+
+        return new StreamTransformer() {
+            @Override
+            public Headers transformHeaders(Headers headers) {
+                return headers.newBuilder()
+                        .removeAll("Content-Encoding")
+                        .removeAll("Content-Length")
+                        .build();
+            }
+
+            @Override
+            public Source transform(Source source) {
+                return new GzipSource(source);
+            }
+        };
+    }
+}
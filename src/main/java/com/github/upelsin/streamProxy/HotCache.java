@@ -0,0 +1,335 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.CacheControl;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded LRU cache of complete small responses, e.g. HLS playlists and segments requested
+ * over and over by several players. Hits are served without touching the network.
+ * <p>
+ * Bodies are captured while being relayed to the first client, so that client isn't delayed,
+ * and kept in direct buffers outside of Java heap. Bodies of unknown length, e.g. decoded from gzip,
+ * are captured as long as they fit an entry. Memory of evicted bodies is released once
+ * their buffers are garbage collected. Bodies count against the cache share of the memory budget,
+ * entries which don't fit even after evicting others are not kept.
+ * <p>
+ * Freshness comes from response headers, see {@link MetadataCache}. Stale entries are revalidated
+ * with their validators, entries without validators are only kept while fresh. Clients asking for
+ * {@code no-cache} get entries revalidated too.
+ * <p>
+ * Entries are shared by all clients, so responses which are private to one of them, or set cookies,
+ * are never kept, and neither are responses to requests carrying cookies.
+ */
+class HotCache {
+
+    private final long maxBytes;
+
+    private final int maxEntryBytes;
+
+    private final MemoryBudget budget;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long size;
+
+    private boolean cleared;
+
+    HotCache(long maxBytes, int maxEntryBytes, MemoryBudget budget) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+        this.budget = budget;
+    }
+
+    /**
+     * Conditional and range requests are left to upstream and {@link MetadataCache},
+     * authorized ones and ones with cookies may not be shared between clients.
+     */
+    static boolean accepts(Request request) {
+        return request.method().equals("GET")
+                && request.header("Range") == null
+                && request.header("Authorization") == null
+                && request.header("Cookie") == null
+                && request.header("If-None-Match") == null
+                && request.header("If-Modified-Since") == null;
+    }
+
+    synchronized Entry get(String url) {
+        Entry entry = entries.get(url);
+        if (entry != null && !entry.isFresh() && !entry.hasValidators()) {
+            remove(url);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Updates headers and freshness of the entry after upstream responded {@code 304 Not Modified}.
+     */
+    Entry refresh(String url, Entry entry, Response notModified) {
+        Headers.Builder merged = entry.headers.newBuilder();
+        Headers headers = notModified.headers();
+        for (String name : headers.names()) {
+            if (!name.equalsIgnoreCase("Content-Length")) {
+                merged.set(name, headers.get(name));
+            }
+        }
+
+        Headers refreshedHeaders = merged.build();
+        Entry refreshed = new Entry(refreshedHeaders, freshUntil(refreshedHeaders), entry.body);
+        if (isShareable(refreshedHeaders, CacheControl.parse(refreshedHeaders))) {
+            put(url, refreshed);
+        } else {
+            remove(url); // still good for this client only
+        }
+        return refreshed;
+    }
+
+    /**
+     * @return response which stores its body once it has been read completely, or the same response
+     * if it can't be cached
+     */
+    Response capture(String url, Request request, Response response) throws IOException {
+        if (!accepts(request) || response.code() != HttpURLConnection.HTTP_OK || response.header("Vary") != null) {
+            return response;
+        }
+
+        CacheControl cacheControl = CacheControl.parse(response.headers());
+        long length = response.body().contentLength();
+        if (cacheControl.noStore() || !isShareable(response.headers(), cacheControl)
+                || length > maxEntryBytes || length > maxBytes) {
+            return response;
+        }
+
+        long freshUntil = MetadataCache.computeFreshUntil(response.headers(), cacheControl);
+        if (freshUntil <= System.currentTimeMillis() && !hasValidators(response.headers())) {
+            return response;
+        }
+
+        ResponseBody body = response.body();
+        int limit = (int) (length != -1 ? length : Math.min(maxEntryBytes, maxBytes));
+        Source source = new CapturingSource(body.source(), url, response.headers(), freshUntil, length, limit);
+        return response.newBuilder()
+                .body(ResponseBody.create(body.contentType(), length, Okio.buffer(source)))
+                .build();
+    }
+
+    private synchronized void put(String url, Entry entry) {
+        if (cleared) {
+            return; // captured after the cache has been replaced
+        }
+        remove(url);
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (size + entry.length() > maxBytes || !budget.tryAcquireCached(entry.length())) {
+            if (!eldest.hasNext()) {
+                return; // doesn't fit the budget, taken by other buffers
+            }
+            Entry evicted = eldest.next();
+            eldest.remove();
+            size -= evicted.length();
+            budget.releaseCached(evicted.length());
+        }
+        entries.put(url, entry);
+        size += entry.length();
+    }
+
+    private synchronized void remove(String url) {
+        Entry removed = entries.remove(url);
+        if (removed != null) {
+            size -= removed.length();
+            budget.releaseCached(removed.length());
+        }
+    }
+
+    /**
+     * Drops all entries and gives their memory back to the budget. Bodies being captured at the moment
+     * are not kept either.
+     */
+    synchronized void clear() {
+        cleared = true;
+        for (Entry entry : entries.values()) {
+            budget.releaseCached(entry.length());
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * @return total length of cached bodies
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    private static long freshUntil(Headers headers) {
+        return MetadataCache.computeFreshUntil(headers, CacheControl.parse(headers));
+    }
+
+    private static boolean isShareable(Headers headers, CacheControl cacheControl) {
+        return !cacheControl.isPrivate() && headers.get("Set-Cookie") == null;
+    }
+
+    private static boolean hasValidators(Headers headers) {
+        return headers.get("ETag") != null || headers.get("Last-Modified") != null;
+    }
+
+    static class Entry extends MetadataCache.Metadata {
+
+        private final ByteBuffer body;
+
+        Entry(Headers headers, long freshUntilMillis, ByteBuffer body) {
+            super(headers, freshUntilMillis);
+            this.body = body;
+        }
+
+        int length() {
+            return body.capacity();
+        }
+
+        boolean hasValidators() {
+            return HotCache.hasValidators(headers);
+        }
+
+        /**
+         * @return {@code false} if the entry is stale, or the client asks for it to be revalidated
+         */
+        boolean isFreshFor(Request request) {
+            return isFresh() && !CacheControl.parse(request.headers()).noCache();
+        }
+
+        Response newResponse(Request request) {
+            String contentType = headers.get("Content-Type");
+            ResponseBody responseBody = ResponseBody.create(
+                    contentType != null ? MediaType.parse(contentType) : null,
+                    length(),
+                    Okio.buffer(new ByteBufferSource(body.duplicate())));
+
+            return new Response.Builder()
+                    .request(request)
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(HttpURLConnection.HTTP_OK)
+                    .message("OK")
+                    .headers(headers)
+                    .body(responseBody)
+                    .build();
+        }
+    }
+
+    /**
+     * Copies body aside while it's being read, and caches it once it has been read in full.
+     * Copying stops as soon as the body turns out to be longer than declared, or than the limit
+     * if its length is unknown.
+     */
+    private class CapturingSource extends ForwardingSource {
+
+        private final String url;
+
+        private final Headers headers;
+
+        private final long freshUntilMillis;
+
+        private final long length;
+
+        private final int limit;
+
+        private Buffer captured = new Buffer();
+
+        /**
+         * @param length declared length of the body, or {@code -1} if it's unknown
+         */
+        CapturingSource(Source delegate, String url, Headers headers, long freshUntilMillis, long length, int limit) {
+            super(delegate);
+            this.url = url;
+            this.headers = headers;
+            this.freshUntilMillis = freshUntilMillis;
+            this.length = length;
+            this.limit = limit;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (captured == null) {
+                return read;
+            }
+
+            if (read == -1) {
+                if (length == -1 || captured.size() == length) {
+                    Headers complete = headers.newBuilder()
+                            .set("Content-Length", Long.toString(captured.size()))
+                            .build();
+                    put(url, new Entry(complete, freshUntilMillis, toDirectBuffer(captured)));
+                }
+                captured = null;
+
+            } else if (captured.size() + read > limit) {
+                captured = null;
+
+            } else {
+                sink.copyTo(captured, sink.size() - read, read);
+            }
+            return read;
+        }
+
+        private ByteBuffer toDirectBuffer(Buffer buffer) {
+            ByteBuffer direct = ByteBuffer.allocateDirect((int) buffer.size());
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = buffer.read(chunk, 0, chunk.length)) != -1) {
+                direct.put(chunk, 0, read);
+            }
+            direct.flip();
+            return direct;
+        }
+    }
+
+    /**
+     * Reads a private duplicate of cached body, so concurrent hits don't interfere.
+     */
+    private static class ByteBufferSource implements Source {
+
+        private final ByteBuffer buffer;
+
+        private final byte[] chunk = new byte[8192];
+
+        ByteBufferSource(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = (int) Math.min(Math.min(byteCount, chunk.length), buffer.remaining());
+            buffer.get(chunk, 0, count);
+            sink.write(chunk, 0, count);
+            return count;
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.Response;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Properties;
+
+/**
+ * Strips leading ID3v2 tag off complete (non-partial) responses.
+ * <p>
+ * Only the tag header is inspected, the tag itself is skipped without being buffered.
+ */
+public class Id3StrippingTransformerFactory implements StreamTransformerFactory {
+
+    private static final int TAG_HEADER_SIZE = 10;
+
+    private static final int FOOTER_PRESENT_FLAG = 0x10;
+
+    @Override
+    public StreamTransformer createTransformer(Response response, Properties props) {
+        if (response.code() != HttpURLConnection.HTTP_OK) {
+            return null; // partial content doesn't start with a tag
+        }
+
+        return new StreamTransformer() {
+            @Override
+            public Headers transformHeaders(Headers headers) {
+                return headers.newBuilder()
+                        .removeAll("Content-Length")
+                        .build();
+            }
+
+            @Override
+            public Source transform(Source source) {
+                return new Id3StrippingSource(Okio.buffer(source));
+            }
+        };
+    }
+
+    private static class Id3StrippingSource extends ForwardingSource {
+
+        private final BufferedSource source;
+
+        private boolean tagSkipped;
+
+        Id3StrippingSource(BufferedSource source) {
+            super(source);
+            this.source = source;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            if (!tagSkipped) {
+                skipTag();
+                tagSkipped = true;
+            }
+            return source.read(sink, byteCount);
+        }
+
+        private void skipTag() throws IOException {
+            if (!source.request(TAG_HEADER_SIZE)) return;
+
+            Buffer header = source.buffer();
+            if (header.getByte(0) != 'I' || header.getByte(1) != 'D' || header.getByte(2) != '3') return;
+
+            // tag size is a "synchsafe" integer, 7 significant bits per byte
+            long size = 0;
+            for (int i = 6; i < TAG_HEADER_SIZE; i++) {
+                size = (size << 7) | (header.getByte(i) & 0x7f);
+            }
+            if ((header.getByte(5) & FOOTER_PRESENT_FLAG) != 0) {
+                size += TAG_HEADER_SIZE;
+            }
+
+            source.skip(TAG_HEADER_SIZE + size);
+        }
+    }
+}
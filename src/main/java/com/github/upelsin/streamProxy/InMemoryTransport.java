@@ -0,0 +1,64 @@
+package com.github.upelsin.streamProxy;
+
+import okio.Buffer;
+import okio.Source;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serves resources put into memory beforehand, keyed by URL. Lets the proxy be exercised
+ * and benchmarked without network noise, e.g. with a made-up {@code mem://} scheme.
+ */
+public class InMemoryTransport extends LocalTransport {
+
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+
+    public void put(String url, byte[] body, String contentType) {
+        resources.put(url, new InMemoryResource(body, contentType, System.currentTimeMillis()));
+    }
+
+    public void remove(String url) {
+        resources.remove(url);
+    }
+
+    @Override
+    protected Resource find(String url) {
+        return resources.get(url);
+    }
+
+    private static class InMemoryResource implements Resource {
+
+        private final byte[] body;
+
+        private final String contentType;
+
+        private final long lastModified;
+
+        InMemoryResource(byte[] body, String contentType, long lastModified) {
+            this.body = body;
+            this.contentType = contentType;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public long length() {
+            return body.length;
+        }
+
+        @Override
+        public long lastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public String contentType() {
+            return contentType;
+        }
+
+        @Override
+        public Source open(long offset) {
+            return new Buffer().write(body, (int) offset, body.length - (int) offset);
+        }
+    }
+}
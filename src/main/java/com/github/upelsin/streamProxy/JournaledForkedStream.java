@@ -0,0 +1,80 @@
+package com.github.upelsin.streamProxy;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes relayed bytes past {@code offset} to the delegate and keeps {@link RecordingJournal} up to date.
+ * <p>
+ * Progress is journaled after flush only, so it never gets ahead of what the delegate has been asked to save.
+ * It's ignored once another recording of the same URL has begun, so the two don't overwrite each other.
+ */
+class JournaledForkedStream implements ForkedStream {
+
+    static final long PROGRESS_INTERVAL_BYTES = 1024 * 1024;
+
+    private static final Logger logger = Logger.getLogger(JournaledForkedStream.class.getName());
+
+    private final ForkedStream delegate;
+
+    private final RecordingJournal journal;
+
+    private final String url;
+
+    private final RecordingJournal.Record recording;
+
+    private final long offset;
+
+    private long position;
+
+    private long journaledPosition;
+
+    JournaledForkedStream(ForkedStream delegate, RecordingJournal journal, String url,
+                          RecordingJournal.Record recording, long offset) {
+        this.delegate = delegate;
+        this.journal = journal;
+        this.url = url;
+        this.recording = recording;
+        this.offset = offset;
+        this.journaledPosition = offset;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // bytes before offset have been served from the recording itself
+        int skip = (int) Math.max(0, Math.min(len, offset - position));
+        if (len > skip) {
+            delegate.write(b, off + skip, len - skip);
+        }
+        position += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        delegate.flush();
+        if (position - journaledPosition >= PROGRESS_INTERVAL_BYTES) {
+            journal.progress(url, recording, position);
+            journaledPosition = position;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+        journal.complete(url, recording);
+    }
+
+    /**
+     * Keeps journaled progress, so the recording can be resumed later.
+     */
+    @Override
+    public void abort() {
+        delegate.abort();
+        try {
+            journal.progress(url, recording, journaledPosition);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to journal progress of " + url, e);
+        }
+    }
+}
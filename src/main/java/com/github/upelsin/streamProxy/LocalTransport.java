@@ -0,0 +1,254 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static com.github.upelsin.streamProxy.Utils.closeQuietly;
+
+/**
+ * Transport which serves resources available locally, answering like a plain HTTP origin would:
+ * {@code GET} and {@code HEAD}, single byte ranges, {@code If-Range} and {@code Last-Modified}.
+ * <p>
+ * Responses are ready right away, so calls complete on the calling thread.
+ */
+public abstract class LocalTransport implements UpstreamTransport {
+
+    public interface Resource {
+
+        long length();
+
+        /**
+         * @return modification time in milliseconds, or {@code 0} if unknown
+         */
+        long lastModified();
+
+        /**
+         * @return media type, or {@code null} if unknown
+         */
+        String contentType();
+
+        /**
+         * @return source positioned at the given offset
+         */
+        Source open(long offset) throws IOException;
+    }
+
+    /**
+     * @return resource at the given URL, or {@code null} if there's none
+     * @throws SecurityException if the URL points outside of what this transport may serve
+     */
+    protected abstract Resource find(String url) throws IOException;
+
+    @Override
+    public UpstreamCall newCall(Request request) {
+        return new LocalCall(request);
+    }
+
+    private Response respond(Request request) throws IOException {
+        if (!request.method().equals("GET") && !request.method().equals("HEAD")) {
+            return emptyResponse(request, HttpURLConnection.HTTP_BAD_METHOD, "Method Not Allowed",
+                    new Headers.Builder().set("Allow", "GET, HEAD"));
+        }
+
+        Resource resource;
+        try {
+            resource = find(request.urlString());
+        } catch (SecurityException e) {
+            return emptyResponse(request, HttpURLConnection.HTTP_FORBIDDEN, "Forbidden", new Headers.Builder());
+        }
+        if (resource == null) {
+            return emptyResponse(request, HttpURLConnection.HTTP_NOT_FOUND, "Not Found", new Headers.Builder());
+        }
+
+        long length = resource.length();
+        Headers.Builder headers = new Headers.Builder().set("Accept-Ranges", "bytes");
+        String lastModified = resource.lastModified() > 0 ? formatDate(resource.lastModified()) : null;
+        if (lastModified != null) {
+            headers.set("Last-Modified", lastModified);
+        }
+        String contentType = resource.contentType();
+        if (contentType != null) {
+            headers.set("Content-Type", contentType);
+        }
+
+        long[] range = null;
+        String ifRange = request.header("If-Range");
+        if (ifRange == null || ifRange.equals(lastModified)) {
+            range = parseRange(request.header("Range"), length);
+        }
+        if (range != null && range.length == 0) {
+            return emptyResponse(request, 416, "Requested Range Not Satisfiable",
+                    headers.set("Content-Range", "bytes */" + length));
+        }
+
+        int code = HttpURLConnection.HTTP_OK;
+        String message = "OK";
+        long offset = 0;
+        long count = length;
+        if (range != null) {
+            code = HttpURLConnection.HTTP_PARTIAL;
+            message = "Partial Content";
+            offset = range[0];
+            count = range[1] - range[0] + 1;
+            headers.set("Content-Range", String.format("bytes %d-%d/%d", range[0], range[1], length));
+        }
+        headers.set("Content-Length", Long.toString(count));
+
+        Source source = request.method().equals("HEAD")
+                ? new Buffer()
+                : new LimitedSource(resource.open(offset), count);
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message(message)
+                .headers(headers.build())
+                .body(ResponseBody.create(contentType != null ? MediaType.parse(contentType) : null, count,
+                        Okio.buffer(source)))
+                .build();
+    }
+
+    private static Response emptyResponse(Request request, int code, String message, Headers.Builder headers) {
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message(message)
+                .headers(headers.set("Content-Length", "0").build())
+                .body(ResponseBody.create(null, 0, new Buffer()))
+                .build();
+    }
+
+    /**
+     * Parses a single range, like {@code bytes=0-1023}, {@code bytes=1024-} or {@code bytes=-512}.
+     *
+     * @return first and last byte positions, {@code null} to serve the whole resource if there's no range
+     * or it isn't understood, empty array if the range can't be satisfied
+     */
+    private static long[] parseRange(String range, long length) {
+        if (range == null || !range.startsWith("bytes=") || range.indexOf(',') != -1) {
+            return null;
+        }
+
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                String lastSpec = spec.substring(dash + 1);
+                last = lastSpec.isEmpty() ? length - 1 : Math.min(Long.parseLong(lastSpec), length - 1);
+            }
+            return first <= last && first < length ? new long[] {first, last} : new long[0];
+
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String formatDate(long millis) {
+        DateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private class LocalCall implements UpstreamCall {
+
+        private final Request request;
+
+        private volatile boolean cancelled;
+
+        private volatile Response response;
+
+        LocalCall(Request request) {
+            this.request = request;
+        }
+
+        @Override
+        public Response execute() throws IOException {
+            if (cancelled) {
+                throw new IOException("Canceled");
+            }
+            response = respond(request);
+            if (cancelled) {
+                closeQuietly(response.body()); // cancelled while responding
+            }
+            return response;
+        }
+
+        @Override
+        public void enqueue(Callback callback) {
+            Response response;
+            try {
+                response = execute();
+            } catch (IOException e) {
+                callback.onFailure(request, e);
+                return;
+            }
+
+            try {
+                callback.onResponse(response);
+            } catch (IOException e) {
+                closeQuietly(response.body());
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            Response response = this.response;
+            if (response != null) {
+                closeQuietly(response.body());
+            }
+        }
+    }
+
+    private static class LimitedSource extends ForwardingSource {
+
+        private long remaining;
+
+        LimitedSource(Source delegate, long count) {
+            super(delegate);
+            this.remaining = count;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            long read = super.read(sink, Math.min(byteCount, remaining));
+            if (read == -1) {
+                throw new IOException("Resource is shorter than expected, " + remaining + " bytes missing");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+}
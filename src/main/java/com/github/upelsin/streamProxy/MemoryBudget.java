@@ -0,0 +1,83 @@
+package com.github.upelsin.streamProxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps memory taken by buffers of all streams combined: relay chunks, queues of forked streams
+ * and bodies kept in {@link HotCache}. Unlimited unless a limit has been set.
+ * <p>
+ * Buffers which can wait or be dropped, like bigger relay chunks, queued fork data or cache entries,
+ * are only taken if they fit. The smallest relay chunk is always taken, so the cap may be exceeded
+ * by that much per stream rather than refusing to serve it.
+ * <p>
+ * Caches keep their buffers long after the stream which filled them is over, so they only get
+ * {@link #CACHE_SHARE_PERCENT} of the limit. The rest is always left to buffers of streams being served.
+ */
+class MemoryBudget {
+
+    static final int CACHE_SHARE_PERCENT = 50;
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final AtomicLong cached = new AtomicLong();
+
+    private volatile long limit = Long.MAX_VALUE;
+
+    /**
+     * @param limit zero or negative for no limit
+     */
+    void setLimit(long limit) {
+        this.limit = limit > 0 ? limit : Long.MAX_VALUE;
+    }
+
+    boolean tryAcquire(long bytes) {
+        while (true) {
+            long current = used.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+            if (used.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    void acquire(long bytes) {
+        used.addAndGet(bytes);
+    }
+
+    void release(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * Like {@link #tryAcquire(long)}, for cached buffers, which must be given back with {@link #releaseCached(long)}.
+     */
+    boolean tryAcquireCached(long bytes) {
+        long limit = this.limit;
+        long cacheLimit = limit == Long.MAX_VALUE ? limit : limit / 100 * CACHE_SHARE_PERCENT;
+        while (true) {
+            long current = cached.get();
+            if (current + bytes > cacheLimit) {
+                return false;
+            }
+            if (cached.compareAndSet(current, current + bytes)) {
+                break;
+            }
+        }
+        if (tryAcquire(bytes)) {
+            return true;
+        }
+        cached.addAndGet(-bytes);
+        return false;
+    }
+
+    void releaseCached(long bytes) {
+        cached.addAndGet(-bytes);
+        release(bytes);
+    }
+
+    long used() {
+        return used.get();
+    }
+}
@@ -0,0 +1,235 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.CacheControl;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of response metadata (validators, length, type and freshness) keyed by upstream URL.
+ * <p>
+ * Lets the proxy answer conditional requests for fresh resources without a round trip to upstream,
+ * and revalidate stale ones with a conditional request instead of a full one.
+ * <p>
+ * Responses with {@code Content-Encoding} or {@code Vary} are not cached, as their metadata
+ * doesn't describe the resource for every client.
+ */
+class MetadataCache {
+
+    static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private static final List<String> CACHED_HEADERS = Arrays.asList(
+            "ETag", "Last-Modified", "Content-Length", "Content-Type", "Cache-Control", "Expires",
+            "Accept-Ranges");
+
+    private static final List<String> NOT_MODIFIED_HEADERS = Arrays.asList(
+            "ETag", "Last-Modified", "Cache-Control", "Expires");
+
+    private final Map<String, Metadata> entries;
+
+    MetadataCache(final int maxEntries) {
+        this.entries = new LinkedHashMap<String, Metadata>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized Metadata get(String url) {
+        return entries.get(url);
+    }
+
+    /**
+     * Records metadata of a complete response, refreshes it on {@code 304 Not Modified}
+     * and forgets it once the resource is gone.
+     */
+    void update(String url, Response response) {
+        int code = response.code();
+        if (code == HttpURLConnection.HTTP_OK) {
+            put(url, response.headers());
+
+        } else if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            Metadata entry = get(url);
+            if (entry != null) {
+                put(url, merge(entry.headers, response.headers()));
+            }
+
+        } else if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+            remove(url);
+        }
+    }
+
+    /**
+     * @return {@code 304 Not Modified} response if client's validators match a fresh entry, {@code null} otherwise
+     */
+    Response notModified(String url, Request request) {
+        Metadata entry = get(url);
+        if (entry == null || !entry.isFresh() || !entry.matches(request)) {
+            return null;
+        }
+
+        Headers.Builder headers = new Headers.Builder();
+        for (String name : NOT_MODIFIED_HEADERS) {
+            String value = entry.headers.get(name);
+            if (value != null) {
+                headers.add(name, value);
+            }
+        }
+
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(HttpURLConnection.HTTP_NOT_MODIFIED)
+                .message("Not Modified")
+                .headers(headers.build())
+                .build();
+    }
+
+    private void put(String url, Headers headers) {
+        CacheControl cacheControl = CacheControl.parse(headers);
+        if (cacheControl.noStore() || isNegotiated(headers)) {
+            remove(url);
+            return;
+        }
+
+        Headers.Builder cached = new Headers.Builder();
+        for (String name : CACHED_HEADERS) {
+            String value = headers.get(name);
+            if (value != null) {
+                cached.add(name, value);
+            }
+        }
+
+        Metadata entry = new Metadata(cached.build(), computeFreshUntil(headers, cacheControl));
+        synchronized (this) {
+            entries.put(url, entry);
+        }
+    }
+
+    /**
+     * Entries are keyed by URL alone and served to any client, so metadata of an encoded body,
+     * or one picked by request headers, would be wrong for clients which asked for another one.
+     */
+    private static boolean isNegotiated(Headers headers) {
+        return headers.get("Content-Encoding") != null || headers.get("Vary") != null;
+    }
+
+    private synchronized void remove(String url) {
+        entries.remove(url);
+    }
+
+    static long computeFreshUntil(Headers headers, CacheControl cacheControl) {
+        long now = System.currentTimeMillis();
+        if (cacheControl.noCache()) {
+            return now; // has to be revalidated every time
+        }
+
+        if (cacheControl.maxAgeSeconds() != -1) {
+            long age = 0;
+            String ageHeader = headers.get("Age");
+            if (ageHeader != null) {
+                try {
+                    age = Long.parseLong(ageHeader.trim());
+                } catch (NumberFormatException ignored) {
+                }
+            }
+            return now + (cacheControl.maxAgeSeconds() - age) * 1000;
+        }
+
+        Date expires = headers.getDate("Expires");
+        if (expires != null) {
+            Date served = headers.getDate("Date");
+            return now + expires.getTime() - (served != null ? served.getTime() : now);
+        }
+
+        return now;
+    }
+
+    /** Headers of {@code 304} response update those stored, as RFC 7234 requires. */
+    private static Headers merge(Headers cached, Headers notModified) {
+        Headers.Builder merged = cached.newBuilder();
+        for (String name : notModified.names()) {
+            if (CACHED_HEADERS.contains(name) && !name.equals("Content-Length")) {
+                merged.set(name, notModified.get(name));
+            }
+        }
+        // freshness is computed off fields which are not kept
+        for (String name : Arrays.asList("Age", "Date")) {
+            String value = notModified.get(name);
+            if (value != null) {
+                merged.set(name, value);
+            }
+        }
+        return merged.build();
+    }
+
+    static class Metadata {
+
+        final Headers headers;
+
+        final long freshUntilMillis;
+
+        Metadata(Headers headers, long freshUntilMillis) {
+            this.headers = headers;
+            this.freshUntilMillis = freshUntilMillis;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < freshUntilMillis;
+        }
+
+        /**
+         * Adds validators of this entry to the request, so that upstream responds with
+         * {@code 304 Not Modified} if the resource hasn't changed.
+         */
+        Request.Builder addValidators(Request.Builder request) {
+            String etag = headers.get("ETag");
+            if (etag != null) {
+                request.header("If-None-Match", etag);
+            }
+            String lastModified = headers.get("Last-Modified");
+            if (lastModified != null) {
+                request.header("If-Modified-Since", lastModified);
+            }
+            return request;
+        }
+
+        private boolean matches(Request request) {
+            String ifNoneMatch = request.header("If-None-Match");
+            if (ifNoneMatch != null) {
+                return matchesEtag(ifNoneMatch);
+            }
+
+            Date ifModifiedSince = request.headers().getDate("If-Modified-Since");
+            Date lastModified = headers.getDate("Last-Modified");
+            return ifModifiedSince != null && lastModified != null && !lastModified.after(ifModifiedSince);
+        }
+
+        private boolean matchesEtag(String ifNoneMatch) {
+            String etag = headers.get("ETag");
+            if (etag == null) return false;
+
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || weak(candidate).equals(weak(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** If-None-Match uses weak comparison. */
+        private static String weak(String etag) {
+            return etag.startsWith("W/") ? etag.substring(2) : etag;
+        }
+    }
+}
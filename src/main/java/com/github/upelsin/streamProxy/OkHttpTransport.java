@@ -0,0 +1,46 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Call;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+
+/**
+ * Default transport for {@code http} and {@code https} URLs.
+ */
+public class OkHttpTransport implements UpstreamTransport {
+
+    private final OkHttpClient client;
+
+    public OkHttpTransport(OkHttpClient client) {
+        this.client = client;
+    }
+
+    public OkHttpClient getClient() {
+        return client;
+    }
+
+    @Override
+    public UpstreamCall newCall(Request request) {
+        final Call call = client.newCall(request);
+        return new UpstreamCall() {
+            @Override
+            public Response execute() throws IOException {
+                return call.execute();
+            }
+
+            @Override
+            public void enqueue(Callback callback) {
+                call.enqueue(callback);
+            }
+
+            @Override
+            public void cancel() {
+                call.cancel();
+            }
+        };
+    }
+}
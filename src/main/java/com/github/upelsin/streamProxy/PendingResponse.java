@@ -0,0 +1,67 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.upelsin.streamProxy.Utils.closeQuietly;
+
+/**
+ * Upstream response which is yet to arrive, lets the serving thread wait for it in slices
+ * and look after the client in between.
+ */
+class PendingResponse implements Callback {
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private Response response;
+
+    private IOException failure;
+
+    private boolean discarded;
+
+    @Override
+    public void onResponse(Response response) {
+        synchronized (this) {
+            if (discarded) {
+                closeQuietly(response.body());
+                return;
+            }
+            this.response = response;
+        }
+        done.countDown();
+    }
+
+    @Override
+    public void onFailure(Request request, IOException e) {
+        this.failure = e;
+        done.countDown();
+    }
+
+    /**
+     * @return response, or {@code null} if it hasn't arrived within timeout
+     */
+    Response await(long timeoutMillis) throws IOException, InterruptedException {
+        if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return null;
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return response;
+    }
+
+    /**
+     * Releases the response, whether it has already arrived or not. Nobody is going to read it.
+     */
+    synchronized void discard() {
+        discarded = true;
+        if (response != null) {
+            closeQuietly(response.body());
+        }
+    }
+}
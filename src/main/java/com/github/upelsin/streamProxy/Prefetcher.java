@@ -0,0 +1,235 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.github.upelsin.streamProxy.Utils.closeQuietly;
+
+/**
+ * Warms up upstream for URLs which are about to be played: resolves hosts, opens pooled
+ * connections and optionally keeps leading bytes of resources in memory.
+ * <p>
+ * Requests for prefetched resources are answered with prefetched bytes right away,
+ * the remainder is requested from upstream only once those bytes have been relayed.
+ * <p>
+ * Prefetched bytes count against the cache share of the memory budget. At most {@link #MAX_ENTRIES}
+ * resources are kept, each of them until it expires. Resources without a validator expire sooner,
+ * as there's no way to tell whether their remainder still belongs to the same version.
+ */
+class Prefetcher {
+
+    private static final Logger logger = Logger.getLogger(Prefetcher.class.getName());
+
+    static final int MAX_ENTRIES = 32;
+
+    static final long TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    static final long TTL_WITHOUT_VALIDATOR_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final UpstreamTransport transport;
+
+    private final MemoryBudget budget;
+
+    private final Map<String, Prefetched> prefetched = new LinkedHashMap<>();
+
+    Prefetcher(UpstreamTransport transport, MemoryBudget budget) {
+        this.transport = transport;
+        this.budget = budget;
+    }
+
+    /**
+     * Resolves host of the URL, then either connects to it or fetches first {@code prefetchBytes} of the resource.
+     */
+    void warmUp(String url, int prefetchBytes) throws IOException {
+        InetAddress.getAllByName(new URL(url).getHost());
+
+        Request.Builder request = new Request.Builder().url(url);
+        if (prefetchBytes <= 0) {
+            // connection is returned to the pool once the response is closed
+            closeQuietly(transport.newCall(request.head().build()).execute().body());
+            return;
+        }
+
+        Response response = transport.newCall(request.header("Range", "bytes=0-" + (prefetchBytes - 1)).build())
+                .execute();
+        try {
+            long length = parseTotalLength(response.header("Content-Range"));
+            if (response.code() != HttpURLConnection.HTTP_PARTIAL || length == -1) {
+                logger.info("Unable to prefetch " + url + ", upstream doesn't support ranges");
+                return;
+            }
+            put(url, new Prefetched(response.headers(), response.body().bytes(), length));
+
+        } finally {
+            closeQuietly(response.body());
+        }
+    }
+
+    /**
+     * @return response starting with prefetched bytes, or {@code null} if the request can't be served this way
+     */
+    Response newResponse(final Request request, final ProxySession session) {
+        if (request.header("Range") != null || !"GET".equals(request.method())) {
+            return null;
+        }
+        final Prefetched entry = get(request.urlString());
+        if (entry == null) {
+            return null;
+        }
+
+        Source body = new SplicedSource(new Buffer().write(entry.prefix), new SplicedSource.TailOpener() {
+            @Override
+            public Source open() throws IOException {
+                return openRemainder(request, entry, session);
+            }
+        });
+
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(HttpURLConnection.HTTP_OK)
+                .message("OK")
+                .headers(entry.headers.newBuilder()
+                        .removeAll("Content-Range")
+                        .set("Content-Length", Long.toString(entry.length))
+                        .build())
+                .body(ResponseBody.create(null, entry.length, Okio.buffer(body)))
+                .build();
+    }
+
+    private Source openRemainder(Request request, Prefetched entry, ProxySession session) throws IOException {
+        if (entry.prefix.length >= entry.length) {
+            return new Buffer();
+        }
+
+        Request.Builder remainder = request.newBuilder().header("Range", "bytes=" + entry.prefix.length + "-");
+        String validator = entry.validator();
+        if (validator != null) {
+            remainder.header("If-Range", validator);
+        }
+
+        UpstreamCall call = transport.newCall(remainder.build());
+        session.setCall(call);
+        Response response = call.execute();
+        BufferedSource source = response.body().source();
+        if (response.code() == HttpURLConnection.HTTP_PARTIAL) {
+            return source;
+        }
+
+        if (response.code() == HttpURLConnection.HTTP_OK && validator == null) {
+            // upstream ignored the range, skip what has already been relayed
+            source.skip(entry.prefix.length);
+            return source;
+        }
+
+        closeQuietly(source);
+        remove(request.urlString(), entry);
+        throw new IOException("Resource has changed since it was prefetched: " + request.urlString());
+    }
+
+    private synchronized Prefetched get(String url) {
+        Prefetched entry = prefetched.get(url);
+        if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+            remove(url, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void put(String url, Prefetched entry) {
+        Prefetched previous = prefetched.get(url);
+        if (previous != null) {
+            remove(url, previous);
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Prefetched> eldest = prefetched.values().iterator();
+        while (eldest.hasNext()) {
+            Prefetched next = eldest.next();
+            if (next.isExpired(now) || prefetched.size() >= MAX_ENTRIES) {
+                eldest.remove();
+                budget.releaseCached(next.prefix.length);
+            }
+        }
+        if (!budget.tryAcquireCached(entry.prefix.length)) {
+            logger.info("Unable to prefetch " + url + ", memory budget is exhausted");
+            return;
+        }
+        prefetched.put(url, entry);
+    }
+
+    private synchronized void remove(String url, Prefetched entry) {
+        if (prefetched.get(url) == entry) {
+            prefetched.remove(url);
+            budget.releaseCached(entry.prefix.length);
+        }
+    }
+
+    /**
+     * Drops all prefetched bytes, giving their memory back to the budget.
+     */
+    synchronized void clear() {
+        for (Prefetched entry : prefetched.values()) {
+            budget.releaseCached(entry.prefix.length);
+        }
+        prefetched.clear();
+    }
+
+    /** Parses total length out of {@code Content-Range: bytes 0-1023/4096}, -1 if it's unknown. */
+    private static long parseTotalLength(String contentRange) {
+        if (contentRange == null) return -1;
+
+        int slash = contentRange.lastIndexOf('/');
+        try {
+            return slash == -1 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class Prefetched {
+
+        final Headers headers;
+
+        final byte[] prefix;
+
+        final long length;
+
+        final long expiresAtMillis;
+
+        Prefetched(Headers headers, byte[] prefix, long length) {
+            this.headers = headers;
+            this.prefix = prefix;
+            this.length = length;
+            this.expiresAtMillis = System.currentTimeMillis()
+                    + (validator() != null ? TTL_MILLIS : TTL_WITHOUT_VALIDATOR_MILLIS);
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAtMillis;
+        }
+
+        String validator() {
+            String etag = headers.get("ETag");
+            // weak validators are not allowed in If-Range
+            return etag != null && !etag.startsWith("W/") ? etag : headers.get("Last-Modified");
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.github.upelsin.streamProxy;
+
+import com.github.upelsin.streamProxy.SessionSnapshot.ForkState;
+import com.github.upelsin.streamProxy.SessionSnapshot.State;
+
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.github.upelsin.streamProxy.Utils.closeQuietly;
+
+/**
+ * State of a single client connection, from {@code accept()} until the response has been relayed.
+ * <p>
+ * Fields are written by the serving thread only and read by anyone, e.g. for metrics.
+ */
+class ProxySession {
+
+    private final long id;
+
+    private final Socket clientSocket;
+
+    private final long startTimeMillis = System.currentTimeMillis();
+
+    private final RequestTrace trace;
+
+    private final AtomicLong bytesRelayed = new AtomicLong();
+
+    private volatile State state = State.ACCEPTED;
+
+    private volatile RequestLine requestLine;
+
+    private volatile UpstreamCall call;
+
+    private volatile ForkedStream forkedStream;
+
+    private volatile int chunkSize;
+
+    private volatile boolean cancelled;
+
+    ProxySession(long id, Socket clientSocket) {
+        this.id = id;
+        this.clientSocket = clientSocket;
+        this.trace = new RequestTrace(id);
+    }
+
+    /**
+     * Closes client connection and cancels upstream call, if any.
+     * Serving thread notices and aborts the forked stream.
+     */
+    void cancel() {
+        cancelled = true;
+        closeQuietly(clientSocket);
+        cancelUpstream();
+    }
+
+    /**
+     * Releases upstream connection right away, without reading the rest of response body.
+     */
+    void cancelUpstream() {
+        UpstreamCall call = this.call;
+        if (call != null) {
+            call.cancel();
+        }
+    }
+
+    SessionSnapshot snapshot() {
+        RequestLine requestLine = this.requestLine;
+        String url = requestLine != null ? requestLine.getUrl() : null;
+        return new SessionSnapshot(id, url, state, bytesRelayed.get(), chunkSize, forkState(), startTimeMillis);
+    }
+
+    private ForkState forkState() {
+        ForkedStream forkedStream = this.forkedStream;
+        if (forkedStream == null) {
+            return ForkState.NONE;
+        }
+        boolean aborted = forkedStream instanceof FanOutForkedStream
+                && ((FanOutForkedStream) forkedStream).isAborted();
+        return aborted ? ForkState.ABORTED : ForkState.RECORDING;
+    }
+
+    long getId() {
+        return id;
+    }
+
+    Socket getClientSocket() {
+        return clientSocket;
+    }
+
+    RequestTrace getTrace() {
+        return trace;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    RequestLine getRequestLine() {
+        return requestLine;
+    }
+
+    void setRequestLine(RequestLine requestLine) {
+        this.requestLine = requestLine;
+    }
+
+    void setCall(UpstreamCall call) {
+        this.call = call;
+        if (cancelled) {
+            call.cancel(); // cancelled while the call was being created
+        }
+    }
+
+    void setForkedStream(ForkedStream forkedStream) {
+        this.forkedStream = forkedStream;
+    }
+
+    void addBytesRelayed(long count) {
+        bytesRelayed.addAndGet(count);
+    }
+
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+}
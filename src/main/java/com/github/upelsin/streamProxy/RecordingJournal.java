@@ -0,0 +1,310 @@
+package com.github.upelsin.streamProxy;
+
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static com.github.upelsin.streamProxy.Utils.closeQuietly;
+
+/**
+ * Append-only journal of recording progress, keyed by upstream URL. Survives process restarts,
+ * so that interrupted recordings can be resumed rather than started over.
+ * <p>
+ * Each record is a tab-separated line. A line torn by a crash is ignored on replay, which only
+ * loses the last progress update. Journal is compacted on open and whenever it has accumulated
+ * enough superseded records.
+ * <p>
+ * Records are forgotten {@link #MAX_AGE_MILLIS} after they began, or were completed, and the oldest
+ * complete ones once there are more than {@link #MAX_COMPLETE_RECORDS} of them, so the journal doesn't
+ * grow with every resource ever recorded.
+ */
+public class RecordingJournal implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(RecordingJournal.class.getName());
+
+    private static final String BEGIN = "BEGIN";
+
+    private static final String PROGRESS = "PROGRESS";
+
+    private static final String COMPLETE = "COMPLETE";
+
+    private static final String REMOVE = "REMOVE";
+
+    private static final int COMPACTION_THRESHOLD = 2000;
+
+    public static final int MAX_COMPLETE_RECORDS = 500;
+
+    public static final long MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    private final File file;
+
+    /** In order of beginning, oldest first. */
+    private final Map<String, Record> records = new LinkedHashMap<>();
+
+    private BufferedSink writer;
+
+    private int appendedRecords;
+
+    public RecordingJournal(File file) throws IOException {
+        this.file = file;
+        if (file.exists()) {
+            replay();
+        }
+        prune();
+        compact();
+    }
+
+    /**
+     * @return state of recording for the URL, or {@code null} if it's unknown
+     */
+    public synchronized Record get(String url) {
+        return records.get(url);
+    }
+
+    /**
+     * Starts recording of the resource from scratch.
+     *
+     * @param validator strong ETag or Last-Modified of the resource, used to resume with {@code If-Range}
+     */
+    public synchronized Record begin(String url, long length, String validator) throws IOException {
+        Record record = new Record(length, validator, 0, false, System.currentTimeMillis(), new Object());
+        records.remove(url); // moves it to the end
+        records.put(url, record);
+        append(BEGIN, url, Long.toString(length), validator, Long.toString(record.timeMillis));
+        return record;
+    }
+
+    /**
+     * Records that first {@code offset} bytes of the resource have been saved.
+     * Ignored if the recording is already complete.
+     */
+    public synchronized void progress(String url, long offset) throws IOException {
+        Record record = records.get(url);
+        if (record == null || record.complete) return;
+
+        records.put(url, record.withOffset(offset, false, record.timeMillis));
+        append(PROGRESS, url, Long.toString(offset));
+    }
+
+    public synchronized void complete(String url) throws IOException {
+        Record record = records.get(url);
+        if (record == null) return;
+
+        Record completed = record.withOffset(record.length, true, System.currentTimeMillis());
+        records.put(url, completed);
+        append(COMPLETE, url, Long.toString(completed.timeMillis));
+        for (String pruned : prune()) {
+            append(REMOVE, pruned);
+        }
+    }
+
+    /**
+     * Like {@link #progress(String, long)}, but ignored unless the URL is still being recorded
+     * by the given recording, so that a recording which has been superseded by another one
+     * doesn't overwrite its progress.
+     *
+     * @param recording record returned by {@link #begin} or {@link #get} when the recording started
+     */
+    synchronized void progress(String url, Record recording, long offset) throws IOException {
+        if (isCurrent(url, recording)) {
+            progress(url, offset);
+        }
+    }
+
+    /**
+     * Like {@link #complete(String)}, but ignored unless the URL is still being recorded by the given recording.
+     */
+    synchronized void complete(String url, Record recording) throws IOException {
+        if (isCurrent(url, recording)) {
+            complete(url);
+        }
+    }
+
+    private boolean isCurrent(String url, Record recording) {
+        Record record = records.get(url);
+        return record != null && record.recording == recording.recording;
+    }
+
+    public synchronized void remove(String url) throws IOException {
+        if (records.remove(url) != null) {
+            append(REMOVE, url);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeQuietly(writer);
+    }
+
+    private void append(String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i != 0) writer.writeUtf8("\t");
+            writer.writeUtf8(fields[i]);
+        }
+        writer.writeUtf8("\n");
+        writer.flush();
+
+        if (++appendedRecords > COMPACTION_THRESHOLD + records.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * @return URLs of forgotten records
+     */
+    private List<String> prune() {
+        long expired = System.currentTimeMillis() - MAX_AGE_MILLIS;
+        int complete = 0;
+        for (Record record : records.values()) {
+            if (record.complete) complete++;
+        }
+
+        List<String> pruned = new ArrayList<>();
+        Iterator<Map.Entry<String, Record>> iterator = records.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Record> entry = iterator.next();
+            Record record = entry.getValue();
+            boolean excess = record.complete && complete > MAX_COMPLETE_RECORDS;
+            if (excess || record.timeMillis < expired) {
+                iterator.remove();
+                if (record.complete) complete--;
+                pruned.add(entry.getKey());
+            }
+        }
+        return pruned;
+    }
+
+    private void replay() throws IOException {
+        BufferedSource reader = Okio.buffer(Okio.source(file));
+        try {
+            while (true) {
+                String line = reader.readUtf8LineStrict();
+                try {
+                    replay(line.split("\t"));
+                } catch (RuntimeException e) {
+                    logger.warning("Skipping malformed journal record: " + line);
+                }
+            }
+        } catch (EOFException e) {
+            // end of journal, or a line torn by crash
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    private void replay(String[] fields) {
+        String type = fields[0];
+        String url = fields[1];
+        Record record = records.get(url);
+
+        if (type.equals(BEGIN)) {
+            records.remove(url);
+            records.put(url, new Record(Long.parseLong(fields[2]), fields[3], 0, false, timeOf(fields, 4),
+                    new Object()));
+        } else if (type.equals(PROGRESS) && record != null && !record.complete) {
+            records.put(url, record.withOffset(Long.parseLong(fields[2]), false, record.timeMillis));
+        } else if (type.equals(COMPLETE) && record != null) {
+            records.put(url, record.withOffset(record.length, true, timeOf(fields, 2)));
+        } else if (type.equals(REMOVE)) {
+            records.remove(url);
+        }
+    }
+
+    /** Journals written before records were timestamped count as written now. */
+    private static long timeOf(String[] fields, int index) {
+        return fields.length > index ? Long.parseLong(fields[index]) : System.currentTimeMillis();
+    }
+
+    /** Rewrites journal with a single set of records per URL, atomically replacing the old one. */
+    private void compact() throws IOException {
+        closeQuietly(writer);
+
+        File compacted = new File(file.getPath() + ".tmp");
+        BufferedSink sink = Okio.buffer(Okio.sink(compacted));
+        try {
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                Record record = entry.getValue();
+                sink.writeUtf8(BEGIN + "\t" + entry.getKey() + "\t" + record.length + "\t" + record.validator
+                        + "\t" + record.timeMillis + "\n");
+                if (record.complete) {
+                    sink.writeUtf8(COMPLETE + "\t" + entry.getKey() + "\t" + record.timeMillis + "\n");
+                } else if (record.offset != 0) {
+                    sink.writeUtf8(PROGRESS + "\t" + entry.getKey() + "\t" + record.offset + "\n");
+                }
+            }
+        } finally {
+            sink.close();
+        }
+
+        if (!compacted.renameTo(file)) {
+            // some platforms don't replace existing files on rename
+            if (!file.delete() || !compacted.renameTo(file)) {
+                throw new IOException("Unable to replace journal " + file);
+            }
+        }
+
+        writer = Okio.buffer(Okio.appendingSink(file));
+        appendedRecords = 0;
+    }
+
+    public static class Record {
+
+        private final long length;
+
+        private final String validator;
+
+        private final long offset;
+
+        private final boolean complete;
+
+        /** Time of beginning, or of completion for complete records. */
+        private final long timeMillis;
+
+        /** Identity of the recording, shared by all states of it. */
+        private final Object recording;
+
+        Record(long length, String validator, long offset, boolean complete, long timeMillis, Object recording) {
+            this.length = length;
+            this.validator = validator;
+            this.offset = offset;
+            this.complete = complete;
+            this.timeMillis = timeMillis;
+            this.recording = recording;
+        }
+
+        Record withOffset(long offset, boolean complete, long timeMillis) {
+            return new Record(length, validator, offset, complete, timeMillis, recording);
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public String getValidator() {
+            return validator;
+        }
+
+        /**
+         * @return number of leading bytes which have been saved
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+}
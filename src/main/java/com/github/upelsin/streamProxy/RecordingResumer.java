@@ -0,0 +1,202 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import okio.Buffer;
+import okio.Okio;
+import okio.Source;
+import okio.Timeout;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.github.upelsin.streamProxy.Utils.closeQuietly;
+
+/**
+ * Resumes interrupted recordings: serves recorded bytes locally, fetches only the rest from upstream
+ * and keeps {@link RecordingJournal} up to date while recording.
+ */
+class RecordingResumer {
+
+    private static final Logger logger = Logger.getLogger(RecordingResumer.class.getName());
+
+    private final RecordingJournal journal;
+
+    private final ResumableForkedStreamFactory factory;
+
+    private final Executor executor;
+
+    private final MemoryBudget budget;
+
+    private final int flushBytes;
+
+    RecordingResumer(RecordingJournal journal, ResumableForkedStreamFactory factory, Executor executor,
+                     MemoryBudget budget, int flushBytes) {
+        this.journal = journal;
+        this.factory = factory;
+        this.executor = executor;
+        this.budget = budget;
+        this.flushBytes = flushBytes;
+    }
+
+    /**
+     * @return record of an interrupted recording which can be resumed to serve the request, {@code null} otherwise
+     */
+    RecordingJournal.Record recordToResume(String url, Request request) {
+        if (request.header("Range") != null) {
+            return null; // client asks for a part of its own
+        }
+
+        RecordingJournal.Record record = journal.get(url);
+        if (record == null || record.isComplete() || record.getOffset() == 0) {
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * @return recorded bytes, or {@code null} if they are gone and the recording has to start over
+     */
+    Source openRecorded(String url, Properties props) throws IOException {
+        Source recorded = factory.openRecorded(props);
+        if (recorded == null) {
+            journal.remove(url);
+        }
+        return recorded;
+    }
+
+    /**
+     * @return request for the bytes which haven't been recorded yet, unless the resource has changed since
+     */
+    Request remainderRequest(Request request, RecordingJournal.Record record) {
+        return request.newBuilder()
+                .header("Range", "bytes=" + record.getOffset() + "-")
+                .header("If-Range", record.getValidator())
+                .build();
+    }
+
+    /**
+     * Splices recorded bytes and the remainder into a complete response.
+     *
+     * @return complete response, or {@code null} if upstream hasn't returned exactly the remainder,
+     * in which case both sources are closed and the recording has to start over
+     */
+    Response splice(String url, Request request, RecordingJournal.Record record, Source recorded, Response remainder)
+            throws IOException {
+
+        String expectedRange = String.format("bytes %d-%d/%d",
+                record.getOffset(), record.getLength() - 1, record.getLength());
+        if (remainder.code() != HttpURLConnection.HTTP_PARTIAL
+                || !expectedRange.equals(remainder.header("Content-Range"))) {
+            closeQuietly(recorded);
+            closeQuietly(remainder.body());
+            journal.remove(url);
+            return null;
+        }
+
+        final Source tail = remainder.body().source();
+        Source body = new SplicedSource(limit(recorded, record.getOffset()), new SplicedSource.TailOpener() {
+            @Override
+            public Source open() {
+                return tail;
+            }
+        });
+
+        return remainder.newBuilder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(HttpURLConnection.HTTP_OK)
+                .message("OK")
+                .headers(remainder.headers().newBuilder()
+                        .removeAll("Content-Range")
+                        .set("Content-Length", Long.toString(record.getLength()))
+                        .build())
+                .body(ResponseBody.create(remainder.body().contentType(), record.getLength(), Okio.buffer(body)))
+                .build();
+    }
+
+    /**
+     * Recording is journaled by the worker of the forked stream, once the factory has created its sink,
+     * so neither the client nor responses which aren't recorded wait for the journal.
+     *
+     * @return journaled stream recording the response, {@code null} if the response can't be resumed later
+     */
+    ForkedStream createForkedStream(final String url, Response response, Properties props, final long resumedFrom) {
+        if (response.code() != HttpURLConnection.HTTP_OK) {
+            return null;
+        }
+
+        final String validator = validatorOf(response);
+        final String length = response.header("Content-Length");
+        final RecordingJournal.Record resumed = resumedFrom != 0 ? journal.get(url) : null;
+        if (resumedFrom == 0 ? validator == null || length == null : resumed == null) {
+            return null;
+        }
+
+        ForkedStreamFactory journaled = new ForkedStreamFactory() {
+            @Override
+            public ForkedStream createForkedStream(Properties props) {
+                if (resumed != null) {
+                    ForkedStream stream = factory.resumeForkedStream(props, resumedFrom);
+                    return stream == null ? null
+                            : new JournaledForkedStream(stream, journal, url, resumed, resumedFrom);
+                }
+
+                ForkedStream stream = factory.createForkedStream(props);
+                if (stream == null) {
+                    return null;
+                }
+                try {
+                    RecordingJournal.Record recording = journal.begin(url, Long.parseLong(length), validator);
+                    return new JournaledForkedStream(stream, journal, url, recording, 0);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Unable to journal recording of " + url + ", it won't be resumable", e);
+                    return stream;
+                }
+            }
+        };
+        return new FanOutForkedStream(executor, FanOutForkedStreamFactory.DEFAULT_MAX_BUFFERED_BYTES, budget,
+                flushBytes, true, props, Collections.singletonList(journaled));
+    }
+
+    private static String validatorOf(Response response) {
+        String etag = response.header("ETag");
+        // weak validators are not allowed in If-Range
+        return etag != null && !etag.startsWith("W/") ? etag : response.header("Last-Modified");
+    }
+
+    private static Source limit(final Source source, final long byteCount) {
+        return new Source() {
+            private long remaining = byteCount;
+
+            @Override
+            public long read(Buffer sink, long count) throws IOException {
+                if (remaining == 0) return -1;
+
+                long read = source.read(sink, Math.min(count, remaining));
+                if (read == -1) {
+                    throw new IOException("Recording is shorter than journaled, " + remaining + " bytes missing");
+                }
+                remaining -= read;
+                return read;
+            }
+
+            @Override
+            public Timeout timeout() {
+                return source.timeout();
+            }
+
+            @Override
+            public void close() throws IOException {
+                source.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.upelsin.streamProxy;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.StringTokenizer;
+
+/**
+ * Parsed first line of a client request, e.g. {@code GET /http://host/track.mp3 HTTP/1.1}.
+ */
+class RequestLine {
+
+    static final List<String> SUPPORTED_METHODS = Arrays.asList("GET", "HEAD", "OPTIONS");
+
+    private final String method;
+
+    private final String url;
+
+    private final String version;
+
+    private RequestLine(String method, String url, String version) {
+        this.method = method;
+        this.url = url;
+        this.version = version;
+    }
+
+    /**
+     * @return parsed request line, or {@code null} if it's malformed
+     * @throws ProxyRequestNotSupportedException if request method is not one of {@link #SUPPORTED_METHODS}
+     */
+    static RequestLine parse(String requestLine) {
+        StringTokenizer st = new StringTokenizer(requestLine);
+        if (st.countTokens() != 3) {
+            return null;
+        }
+
+        String method = st.nextToken().toUpperCase(Locale.US);
+        String target = st.nextToken();
+        String version = st.nextToken();
+        if (!target.startsWith("/")) {
+            return null;
+        }
+        if (!SUPPORTED_METHODS.contains(method)) {
+            throw new ProxyRequestNotSupportedException("Unable to serve request, " + method + " is not supported");
+        }
+
+        return new RequestLine(method, target.substring(1), version); // skip leading "/"
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return upstream URL
+     */
+    String getUrl() {
+        return url;
+    }
+
+    String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return {@code false} for HTTP/1.0 clients, which don't understand chunked encoding
+     */
+    boolean isHttp11() {
+        return !version.equalsIgnoreCase("HTTP/1.0");
+    }
+}
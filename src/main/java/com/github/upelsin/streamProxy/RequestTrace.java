@@ -0,0 +1,158 @@
+package com.github.upelsin.streamProxy;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timing of the phases a single client request goes through, see {@link StreamProxy#getRecentTraces()}.
+ * <p>
+ * Phases are begun and ended by the serving thread, except {@link Phase#UPSTREAM_CONNECT} which is ended
+ * by OkHttp's thread once a connection has been obtained. Phases which a request never reached,
+ * e.g. upstream phases of a cache hit, are absent. Begin and end events are logged at {@code FINE}
+ * level along with the trace id, which is the id of the session.
+ */
+public class RequestTrace {
+
+    public enum Phase {
+        /** From accepting the connection until the request line and headers have been read. */
+        PARSE,
+        /** From issuing upstream call until a connection has been obtained, either new or pooled. */
+        UPSTREAM_CONNECT,
+        /** From issuing upstream call until response headers have arrived, includes connecting. */
+        UPSTREAM_HEADERS,
+        /** Creation of the forked stream. */
+        FORK,
+        /** From writing response headers until the first chunk of body has been flushed to the client. */
+        FIRST_BYTE,
+        /** From the first chunk of body until the last one. */
+        RELAY
+    }
+
+    private static final Logger logger = Logger.getLogger(RequestTrace.class.getName());
+
+    private final long id;
+
+    private final long startTimeMillis = System.currentTimeMillis();
+
+    private final long startNanos = System.nanoTime();
+
+    private final boolean[] begun = new boolean[Phase.values().length];
+
+    private final long[] beginNanos = new long[Phase.values().length];
+
+    private final long[] durationNanos = new long[Phase.values().length];
+
+    private String request;
+
+    private long totalNanos = -1;
+
+    RequestTrace(long id) {
+        this.id = id;
+        Arrays.fill(durationNanos, -1);
+        begin(Phase.PARSE);
+    }
+
+    synchronized void begin(Phase phase) {
+        begun[phase.ordinal()] = true;
+        beginNanos[phase.ordinal()] = System.nanoTime();
+        durationNanos[phase.ordinal()] = -1;
+        log("begin", phase);
+    }
+
+    /**
+     * Ignored if the phase hasn't been begun or has already been ended.
+     */
+    synchronized void end(Phase phase) {
+        int i = phase.ordinal();
+        if (!begun[i] || durationNanos[i] != -1) {
+            return;
+        }
+        durationNanos[i] = System.nanoTime() - beginNanos[i];
+        log("end", phase);
+    }
+
+    synchronized void setRequest(String request) {
+        this.request = request;
+    }
+
+    /**
+     * Ends the whole request, along with the phases which are still running.
+     */
+    synchronized void finish() {
+        for (Phase phase : Phase.values()) {
+            end(phase);
+        }
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    private void log(String event, Phase phase) {
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(String.format("#%d %s %s", id, event, phase));
+        }
+    }
+
+    /**
+     * @return id of the session the trace belongs to
+     */
+    public long getId() {
+        return id;
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * @return method and upstream URL, or {@code null} if request line hasn't been parsed
+     */
+    public synchronized String getRequest() {
+        return request;
+    }
+
+    /**
+     * @return duration of the phase, or {@code -1} if it hasn't been reached or is still running
+     */
+    public synchronized long getPhaseNanos(Phase phase) {
+        return durationNanos[phase.ordinal()];
+    }
+
+    /**
+     * @return time from accepting the connection until the client got the first byte of body,
+     * or until the request was over if no body was sent; {@code -1} if neither happened yet
+     */
+    public synchronized long getTimeToFirstByteNanos() {
+        int i = Phase.FIRST_BYTE.ordinal();
+        if (durationNanos[i] != -1) {
+            return beginNanos[i] + durationNanos[i] - startNanos;
+        }
+        return totalNanos;
+    }
+
+    /**
+     * @return time from accepting the connection until it was closed, or {@code -1} if it's still open
+     */
+    public synchronized long getTotalNanos() {
+        return totalNanos;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append('#').append(id).append(' ').append(request != null ? request : "-");
+        sb.append(" ttfb=").append(millis(getTimeToFirstByteNanos()));
+        sb.append(" total=").append(millis(totalNanos));
+        for (Phase phase : Phase.values()) {
+            long duration = durationNanos[phase.ordinal()];
+            if (duration != -1) {
+                sb.append(' ').append(phase.name().toLowerCase(Locale.US)).append('=').append(millis(duration));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String millis(long nanos) {
+        return nanos == -1 ? "-" : String.format(Locale.US, "%.1fms", nanos / 1e6);
+    }
+}
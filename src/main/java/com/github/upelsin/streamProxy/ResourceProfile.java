@@ -0,0 +1,239 @@
+package com.github.upelsin.streamProxy;
+
+/**
+ * Threads, memory and wake-ups the proxy may spend, see {@link StreamProxy#setResourceProfile}.
+ * <p>
+ * {@link #DEFAULT} favours latency: threads are spawned on demand and every chunk is passed on
+ * as soon as it arrives. {@link #lowPower()} is meant for long background recordings on battery:
+ * <ul>
+ * <li>a small pool of workers, reaped soon after going idle, serves clients. A few connections
+ * beyond that wait for a worker to free up, the rest are answered {@code 503 Service Unavailable};</li>
+ * <li>forked sinks and upstream calls share a second pool, which never queues them and keeps
+ * threads only while they're busy. Its size follows the number of streams being served;</li>
+ * <li>after the first chunk, short reads are followed by a pause, so bytes trickling in
+ * from upstream are picked up in batches rather than waking the CPU for every packet;</li>
+ * <li>forked sinks are flushed in large batches instead of whenever their queue runs dry;</li>
+ * <li>buffers of all streams combined, including the hot cache, fit a memory cap.</li>
+ * </ul>
+ * <p>
+ * Zero means unbounded for worker threads and memory.
+ */
+public final class ResourceProfile {
+
+    public static final ResourceProfile DEFAULT = new Builder().build();
+
+    private final int workerThreads;
+
+    private final int pendingSessions;
+
+    private final long idleTimeoutMillis;
+
+    private final long memoryLimitBytes;
+
+    private final int minChunkSize;
+
+    private final int maxChunkSize;
+
+    private final int forkFlushBytes;
+
+    private final long readCoalescingMillis;
+
+    private final long disconnectCheckIntervalMillis;
+
+    private ResourceProfile(Builder builder) {
+        this.workerThreads = builder.workerThreads;
+        this.pendingSessions = builder.pendingSessions;
+        this.idleTimeoutMillis = builder.idleTimeoutMillis;
+        this.memoryLimitBytes = builder.memoryLimitBytes;
+        this.minChunkSize = builder.minChunkSize;
+        this.maxChunkSize = builder.maxChunkSize;
+        this.forkFlushBytes = builder.forkFlushBytes;
+        this.readCoalescingMillis = builder.readCoalescingMillis;
+        this.disconnectCheckIntervalMillis = builder.disconnectCheckIntervalMillis;
+    }
+
+    public static ResourceProfile lowPower() {
+        return new Builder()
+                .workerThreads(4)
+                .pendingSessions(8)
+                .idleTimeoutMillis(5000)
+                .memoryLimitBytes(8 * 1024 * 1024)
+                .chunkSizeBounds(16 * 1024, 128 * 1024)
+                .forkFlushBytes(256 * 1024)
+                .readCoalescingMillis(100)
+                .disconnectCheckIntervalMillis(250)
+                .build();
+    }
+
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    public int getPendingSessions() {
+        return pendingSessions;
+    }
+
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public long getMemoryLimitBytes() {
+        return memoryLimitBytes;
+    }
+
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    public int getForkFlushBytes() {
+        return forkFlushBytes;
+    }
+
+    public long getReadCoalescingMillis() {
+        return readCoalescingMillis;
+    }
+
+    public long getDisconnectCheckIntervalMillis() {
+        return disconnectCheckIntervalMillis;
+    }
+
+    public Builder newBuilder() {
+        return new Builder(this);
+    }
+
+    public static final class Builder {
+
+        private int workerThreads;
+
+        private int pendingSessions = 16;
+
+        private long idleTimeoutMillis = 60 * 1000;
+
+        private long memoryLimitBytes;
+
+        private int minChunkSize = ChunkSizer.DEFAULT_MIN_CHUNK_SIZE;
+
+        private int maxChunkSize = ChunkSizer.DEFAULT_MAX_CHUNK_SIZE;
+
+        private int forkFlushBytes;
+
+        private long readCoalescingMillis;
+
+        private long disconnectCheckIntervalMillis = 50;
+
+        public Builder() {
+        }
+
+        private Builder(ResourceProfile profile) {
+            this.workerThreads = profile.workerThreads;
+            this.pendingSessions = profile.pendingSessions;
+            this.idleTimeoutMillis = profile.idleTimeoutMillis;
+            this.memoryLimitBytes = profile.memoryLimitBytes;
+            this.minChunkSize = profile.minChunkSize;
+            this.maxChunkSize = profile.maxChunkSize;
+            this.forkFlushBytes = profile.forkFlushBytes;
+            this.readCoalescingMillis = profile.readCoalescingMillis;
+            this.disconnectCheckIntervalMillis = profile.disconnectCheckIntervalMillis;
+        }
+
+        /**
+         * Fixed number of workers, zero spawns them on demand without a limit.
+         */
+        public Builder workerThreads(int workerThreads) {
+            if (workerThreads < 0) {
+                throw new IllegalArgumentException("Worker thread count must not be negative");
+            }
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        /**
+         * How many connections may wait for one of a fixed number of workers to free up. Connections
+         * beyond that are answered {@code 503 Service Unavailable}. Not used if workers aren't limited.
+         */
+        public Builder pendingSessions(int pendingSessions) {
+            if (pendingSessions < 0) {
+                throw new IllegalArgumentException("Pending session count must not be negative");
+            }
+            this.pendingSessions = pendingSessions;
+            return this;
+        }
+
+        /**
+         * How long a worker may stay idle before it's terminated.
+         */
+        public Builder idleTimeoutMillis(long idleTimeoutMillis) {
+            if (idleTimeoutMillis <= 0) {
+                throw new IllegalArgumentException("Idle timeout must be positive");
+            }
+            this.idleTimeoutMillis = idleTimeoutMillis;
+            return this;
+        }
+
+        /**
+         * Cap for buffers of all streams combined. Zero means no cap.
+         */
+        public Builder memoryLimitBytes(long memoryLimitBytes) {
+            if (memoryLimitBytes < 0) {
+                throw new IllegalArgumentException("Memory limit must not be negative");
+            }
+            this.memoryLimitBytes = memoryLimitBytes;
+            return this;
+        }
+
+        /**
+         * See {@link StreamProxy#setChunkSizeBounds}.
+         */
+        public Builder chunkSizeBounds(int minSize, int maxSize) {
+            if (minSize <= 0 || maxSize < minSize) {
+                throw new IllegalArgumentException("Invalid chunk size bounds: " + minSize + ", " + maxSize);
+            }
+            this.minChunkSize = minSize;
+            this.maxChunkSize = maxSize;
+            return this;
+        }
+
+        /**
+         * Forked sinks are flushed once this many bytes have been written since the last flush,
+         * and on close. Zero flushes them whenever their queue has been drained.
+         */
+        public Builder forkFlushBytes(int forkFlushBytes) {
+            if (forkFlushBytes < 0) {
+                throw new IllegalArgumentException("Flush threshold must not be negative");
+            }
+            this.forkFlushBytes = forkFlushBytes;
+            return this;
+        }
+
+        /**
+         * Pause after a read which didn't fill the chunk, letting more bytes arrive before the next one.
+         * Never applied before the first chunk, so it doesn't delay playback start. Zero disables it.
+         */
+        public Builder readCoalescingMillis(long readCoalescingMillis) {
+            if (readCoalescingMillis < 0) {
+                throw new IllegalArgumentException("Coalescing pause must not be negative");
+            }
+            this.readCoalescingMillis = readCoalescingMillis;
+            return this;
+        }
+
+        /**
+         * How often client connection is checked while waiting for upstream to respond.
+         */
+        public Builder disconnectCheckIntervalMillis(long disconnectCheckIntervalMillis) {
+            if (disconnectCheckIntervalMillis <= 0) {
+                throw new IllegalArgumentException("Check interval must be positive");
+            }
+            this.disconnectCheckIntervalMillis = disconnectCheckIntervalMillis;
+            return this;
+        }
+
+        public ResourceProfile build() {
+            return new ResourceProfile(this);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decides how a response is framed for the client and rewrites its headers accordingly.
+ * <p>
+ * Upstream headers describe the bytes as they travelled from upstream, while the client gets
+ * them after OkHttp has undone chunked and, possibly, gzip encoding, and after transformations.
+ * Hop-by-hop headers are dropped, body is delimited by {@code Content-Length} if it's known,
+ * chunked encoding otherwise, or by closing connection for HTTP/1.0 clients.
+ */
+class ResponseFraming {
+
+    private static final List<String> HOP_BY_HOP_HEADERS = Arrays.asList(
+            "Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization",
+            "TE", "Trailer", "Transfer-Encoding", "Upgrade");
+
+    /** Prefix of headers which OkHttp adds to responses for its own bookkeeping. */
+    private static final String OKHTTP_HEADER_PREFIX = "okhttp-";
+
+    private final Headers headers;
+
+    private final boolean chunked;
+
+    ResponseFraming(Response response, boolean http11Client) {
+        boolean hasBody = hasBody(response);
+        Headers.Builder builder = endToEndHeaders(response.headers());
+
+        chunked = hasBody && http11Client && builder.get("Content-Length") == null;
+        if (chunked) {
+            builder.set("Transfer-Encoding", "chunked");
+        }
+        // connections are not reused yet
+        headers = builder.set("Connection", "close").build();
+    }
+
+    static boolean hasBody(Response response) {
+        int code = response.code();
+        return !response.request().method().equals("HEAD")
+                && (code >= 200 || code < 100)
+                && code != HttpURLConnection.HTTP_NO_CONTENT
+                && code != HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    private static Headers.Builder endToEndHeaders(Headers upstream) {
+        Headers.Builder builder = upstream.newBuilder();
+        for (String name : HOP_BY_HOP_HEADERS) {
+            builder.removeAll(name);
+        }
+
+        // Connection lists further hop-by-hop headers
+        for (String connection : upstream.values("Connection")) {
+            for (String name : connection.split(",")) {
+                builder.removeAll(name.trim());
+            }
+        }
+
+        for (String name : upstream.names()) {
+            if (name.toLowerCase(Locale.US).startsWith(OKHTTP_HEADER_PREFIX)) {
+                builder.removeAll(name);
+            }
+        }
+        return builder;
+    }
+
+    Headers headers() {
+        return headers;
+    }
+
+    /**
+     * @return sink for response body; closing it completes the body, but leaves {@code sink} open
+     */
+    BufferedSink bodySink(BufferedSink sink) {
+        return Okio.buffer(chunked ? new ChunkedSink(sink) : new UnclosableSink(sink));
+    }
+
+    /**
+     * Writes every flushed portion of data as a separate chunk.
+     */
+    private static class ChunkedSink implements Sink {
+
+        private final BufferedSink sink;
+
+        ChunkedSink(BufferedSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            if (byteCount == 0) return;
+
+            sink.writeHexadecimalUnsignedLong(byteCount);
+            sink.writeUtf8("\r\n");
+            sink.write(source, byteCount);
+            sink.writeUtf8("\r\n");
+        }
+
+        @Override
+        public void flush() throws IOException {
+            sink.flush();
+        }
+
+        @Override
+        public Timeout timeout() {
+            return sink.timeout();
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.writeUtf8("0\r\n\r\n");
+            sink.flush();
+        }
+    }
+
+    private static class UnclosableSink implements Sink {
+
+        private final BufferedSink sink;
+
+        UnclosableSink(BufferedSink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            sink.write(source, byteCount);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            sink.flush();
+        }
+
+        @Override
+        public Timeout timeout() {
+            return sink.timeout();
+        }
+
+        @Override
+        public void close() throws IOException {
+            sink.flush();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.upelsin.streamProxy;
+
+import okio.Source;
+
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * {@code ForkedStreamFactory} able to continue an interrupted recording, see {@link RecordingJournal}.
+ */
+public interface ResumableForkedStreamFactory extends ForkedStreamFactory {
+
+    /**
+     * Opens bytes recorded so far, so that the proxy serves them to the client instead of fetching them again.
+     *
+     * @return recorded bytes, or {@code null} if there are none
+     */
+    Source openRecorded(Properties props) throws IOException;
+
+    /**
+     * Creates a stream which continues recording at {@code offset}, discarding anything recorded past it.
+     *
+     * @return stream to fork response to, or {@code null} if it should not be recorded
+     */
+    ForkedStream resumeForkedStream(Properties props, long offset);
+}
@@ -0,0 +1,40 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Request;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks transport by scheme of requested URL, falls back to the default one.
+ * <p>
+ * Scheme is taken off the URL string as is, so transports may serve schemes unknown
+ * to {@link java.net.URL}, e.g. {@code mem://}.
+ */
+class SchemeTransport implements UpstreamTransport {
+
+    private final Map<String, UpstreamTransport> transports = new ConcurrentHashMap<>();
+
+    private volatile UpstreamTransport defaultTransport;
+
+    void setDefaultTransport(UpstreamTransport defaultTransport) {
+        this.defaultTransport = defaultTransport;
+    }
+
+    void register(String scheme, UpstreamTransport transport) {
+        transports.put(scheme.toLowerCase(Locale.US), transport);
+    }
+
+    void unregister(String scheme) {
+        transports.remove(scheme.toLowerCase(Locale.US));
+    }
+
+    @Override
+    public UpstreamCall newCall(Request request) {
+        String url = request.urlString();
+        int colon = url.indexOf(':');
+        UpstreamTransport transport = colon > 0 ? transports.get(url.substring(0, colon).toLowerCase(Locale.US)) : null;
+        return (transport != null ? transport : defaultTransport).newCall(request);
+    }
+}
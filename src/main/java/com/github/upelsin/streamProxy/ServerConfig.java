@@ -0,0 +1,184 @@
+package com.github.upelsin.streamProxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Listening sockets of the proxy and options of accepted client connections.
+ * <p>
+ * Each listener gets its own acceptor threads, all of them handing connections over to the shared
+ * pool of serving threads. Several listeners spread accepts over several kernel queues, which is
+ * the portable counterpart of binding the same port with {@code SO_REUSEPORT}.
+ * <p>
+ * Zero means system default for sizes and backlog.
+ */
+public final class ServerConfig {
+
+    private final List<Integer> ports;
+
+    private final int backlog;
+
+    private final int acceptorsPerListener;
+
+    private final boolean tcpNoDelay;
+
+    private final int receiveBufferSize;
+
+    private final int sendBufferSize;
+
+    private ServerConfig(Builder builder) {
+        this.ports = Collections.unmodifiableList(new ArrayList<>(builder.ports));
+        this.backlog = builder.backlog;
+        this.acceptorsPerListener = builder.acceptorsPerListener;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.sendBufferSize = builder.sendBufferSize;
+    }
+
+    public static ServerConfig forPort(int port) {
+        return new Builder().addPort(port).build();
+    }
+
+    public List<Integer> getPorts() {
+        return ports;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getAcceptorsPerListener() {
+        return acceptorsPerListener;
+    }
+
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Binds all listeners. If any of them can't be bound, those bound so far are closed.
+     */
+    List<ServerSocket> bind() throws IOException {
+        List<ServerSocket> listeners = new ArrayList<>(ports.size());
+        try {
+            for (int port : ports) {
+                listeners.add(bind(port));
+            }
+        } catch (IOException e) {
+            for (ServerSocket listener : listeners) {
+                Utils.closeQuietly(listener);
+            }
+            throw e;
+        }
+        return listeners;
+    }
+
+    private ServerSocket bind(int port) throws IOException {
+        ServerSocket listener = new ServerSocket();
+        try {
+            listener.setReuseAddress(port != 0);
+            if (receiveBufferSize > 0) {
+                // inherited by accepted sockets, has to be set before binding to allow windows above 64K
+                listener.setReceiveBufferSize(receiveBufferSize);
+            }
+            listener.bind(new InetSocketAddress(port), backlog);
+        } catch (IOException e) {
+            Utils.closeQuietly(listener);
+            throw e;
+        }
+        return listener;
+    }
+
+    void configure(Socket clientSocket) throws IOException {
+        clientSocket.setTcpNoDelay(tcpNoDelay);
+        if (sendBufferSize > 0) {
+            clientSocket.setSendBufferSize(sendBufferSize);
+        }
+    }
+
+    public static final class Builder {
+
+        private final List<Integer> ports = new ArrayList<>();
+
+        private int backlog;
+
+        private int acceptorsPerListener = 1;
+
+        private boolean tcpNoDelay;
+
+        private int receiveBufferSize;
+
+        private int sendBufferSize;
+
+        /**
+         * Adds a listener at the given port, zero picks a free one. Defaults to a single listener at a free port.
+         */
+        public Builder addPort(int port) {
+            if (port < 0 || port > 0xFFFF) {
+                throw new IllegalArgumentException("Port out of range: " + port);
+            }
+            ports.add(port);
+            return this;
+        }
+
+        public Builder backlog(int backlog) {
+            if (backlog < 0) {
+                throw new IllegalArgumentException("Backlog must not be negative");
+            }
+            this.backlog = backlog;
+            return this;
+        }
+
+        public Builder acceptorsPerListener(int acceptors) {
+            if (acceptors < 1) {
+                throw new IllegalArgumentException("At least one acceptor per listener is required");
+            }
+            this.acceptorsPerListener = acceptors;
+            return this;
+        }
+
+        /**
+         * Disables Nagle's algorithm on client connections, so small responses aren't delayed.
+         */
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        public Builder receiveBufferSize(int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("Buffer size must not be negative");
+            }
+            this.receiveBufferSize = size;
+            return this;
+        }
+
+        public Builder sendBufferSize(int size) {
+            if (size < 0) {
+                throw new IllegalArgumentException("Buffer size must not be negative");
+            }
+            this.sendBufferSize = size;
+            return this;
+        }
+
+        public ServerConfig build() {
+            if (ports.isEmpty()) {
+                ports.add(0);
+            }
+            return new ServerConfig(this);
+        }
+    }
+}
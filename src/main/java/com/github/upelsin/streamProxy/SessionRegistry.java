@@ -0,0 +1,58 @@
+package com.github.upelsin.streamProxy;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of live client sessions with lookup by id.
+ * <p>
+ * Lookups and iteration take no locks, registration only contends on a single hash bin,
+ * so connection churn doesn't serialize serving threads.
+ */
+class SessionRegistry {
+
+    private final AtomicLong nextId = new AtomicLong();
+
+    private final ConcurrentMap<Long, ProxySession> sessions = new ConcurrentHashMap<>();
+
+    ProxySession register(Socket clientSocket) {
+        ProxySession session = new ProxySession(nextId.incrementAndGet(), clientSocket);
+        sessions.put(session.getId(), session);
+        return session;
+    }
+
+    void unregister(ProxySession session) {
+        session.setState(SessionSnapshot.State.CLOSED);
+        sessions.remove(session.getId());
+    }
+
+    boolean cancel(long id) {
+        ProxySession session = sessions.get(id);
+        if (session == null) {
+            return false;
+        }
+        session.cancel();
+        return true;
+    }
+
+    void cancelAll() {
+        for (ProxySession session : sessions.values()) {
+            session.cancel();
+        }
+    }
+
+    /**
+     * Weakly consistent: sessions registered or closed while iterating may or may not be included.
+     */
+    List<SessionSnapshot> snapshot() {
+        List<SessionSnapshot> result = new ArrayList<>(sessions.size());
+        for (ProxySession session : sessions.values()) {
+            result.add(session.snapshot());
+        }
+        return result;
+    }
+}
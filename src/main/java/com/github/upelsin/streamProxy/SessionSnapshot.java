@@ -0,0 +1,84 @@
+package com.github.upelsin.streamProxy;
+
+/**
+ * Immutable point-in-time view of a client session, see {@link StreamProxy#getSessions()}.
+ */
+public class SessionSnapshot {
+
+    public enum State {
+        ACCEPTED, CONNECTING, RELAYING, CLOSED
+    }
+
+    public enum ForkState {
+        /** Response isn't being forked, e.g. it hasn't arrived yet. */
+        NONE,
+        RECORDING,
+        /** Forked stream has failed or fallen behind, the response is still being relayed. */
+        ABORTED
+    }
+
+    private final long id;
+
+    private final String url;
+
+    private final State state;
+
+    private final long bytesRelayed;
+
+    private final int chunkSize;
+
+    private final ForkState forkState;
+
+    private final long startTimeMillis;
+
+    SessionSnapshot(long id, String url, State state, long bytesRelayed, int chunkSize, ForkState forkState,
+                    long startTimeMillis) {
+        this.id = id;
+        this.url = url;
+        this.state = state;
+        this.bytesRelayed = bytesRelayed;
+        this.chunkSize = chunkSize;
+        this.forkState = forkState;
+        this.startTimeMillis = startTimeMillis;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return upstream URL, or {@code null} if request hasn't been parsed yet
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getBytesRelayed() {
+        return bytesRelayed;
+    }
+
+    /**
+     * @return size of chunks the response is being relayed in at the moment, or {@code 0} before relaying
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public ForkState getForkState() {
+        return forkState;
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("#%d %s %s %d bytes, %d byte chunks, fork %s",
+                id, state, url, bytesRelayed, chunkSize, forkState);
+    }
+}
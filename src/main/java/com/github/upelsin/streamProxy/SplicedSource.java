@@ -0,0 +1,63 @@
+package com.github.upelsin.streamProxy;
+
+import okio.Buffer;
+import okio.Source;
+import okio.Timeout;
+
+import java.io.IOException;
+
+import static com.github.upelsin.streamProxy.Utils.closeQuietly;
+
+/**
+ * {@code Source} which reads {@code head} to the end and then continues with a tail,
+ * opened only once the head has been exhausted.
+ * <p>
+ * Used to serve locally available leading bytes of a resource instantly,
+ * while the rest of it is fetched from upstream.
+ */
+class SplicedSource implements Source {
+
+    interface TailOpener {
+
+        Source open() throws IOException;
+    }
+
+    private Source head;
+
+    private final TailOpener tailOpener;
+
+    private Source tail;
+
+    SplicedSource(Source head, TailOpener tailOpener) {
+        this.head = head;
+        this.tailOpener = tailOpener;
+    }
+
+    @Override
+    public long read(Buffer sink, long byteCount) throws IOException {
+        if (head != null) {
+            long read = head.read(sink, byteCount);
+            if (read != -1) {
+                return read;
+            }
+            head.close();
+            head = null;
+        }
+
+        if (tail == null) {
+            tail = tailOpener.open();
+        }
+        return tail.read(sink, byteCount);
+    }
+
+    @Override
+    public Timeout timeout() {
+        return Timeout.NONE;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeQuietly(head);
+        closeQuietly(tail);
+    }
+}
@@ -1,22 +1,37 @@
 package com.github.upelsin.streamProxy;
 
+import com.squareup.okhttp.ConnectionPool;
+import com.squareup.okhttp.Dispatcher;
 import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.Interceptor;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import okio.Buffer;
 import okio.BufferedSink;
 import okio.BufferedSource;
 import okio.Okio;
+import okio.Source;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,38 +40,158 @@ import static com.github.upelsin.streamProxy.Utils.*;
 
 public class StreamProxy implements Runnable {
 
+    /** Okio reads at most one segment from upstream at once, shorter reads mean nothing more is ready. */
+    private static final int READ_SEGMENT_SIZE = 2048;
+
+    /** Path at which loopback clients get recent request traces, one per line, most recent first. */
+    public static final String TRACES_PATH = "/_streamproxy/traces";
+
     private Logger logger = Logger.getLogger(StreamProxy.class.getName());
 
-    private ServerSocket serverSocket;
+    private ServerConfig config;
 
-    private Thread serverThread;
+    private List<ServerSocket> listeners;
 
+    private List<Thread> acceptorThreads;
+
+    /** Serves client sessions. */
     private ExecutorService executor;
 
+    /** Runs forked streams, upstream calls and warm-ups, which must not wait behind sessions. */
+    private ExecutorService backgroundExecutor;
+
     private ForkedStreamFactory streamFactory;
 
-    private Set<Socket> clientSockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
-    private OkHttpClient client;
+    private ForkedStreamFactory asyncStreamFactory;
+
+    private List<StreamTransformerFactory> transformerFactories = new CopyOnWriteArrayList<>();
+
+    private SessionRegistry sessions = new SessionRegistry();
+
+    private TraceRecorder traces = new TraceRecorder(TraceRecorder.DEFAULT_CAPACITY);
+
+    private SchemeTransport transport = new SchemeTransport();
+
+    private Prefetcher prefetcher;
+
+    private volatile boolean upstreamCompression = true;
+
+    private volatile ResourceProfile resourceProfile = ResourceProfile.DEFAULT;
+
+    private final MemoryBudget memoryBudget = new MemoryBudget();
+
+    private volatile int minChunkSize = ChunkSizer.DEFAULT_MIN_CHUNK_SIZE;
+
+    private volatile int maxChunkSize = ChunkSizer.DEFAULT_MAX_CHUNK_SIZE;
+
+    private RecordingJournal journal;
+
+    private RecordingResumer resumer;
+
+    private MetadataCache metadataCache = new MetadataCache(MetadataCache.DEFAULT_MAX_ENTRIES);
+
+    private volatile HotCache hotCache;
 
     public StreamProxy(ForkedStreamFactory streamFactory) {
         this.streamFactory = streamFactory;
     }
 
-    public void start(int port) {
+    /**
+     * Binds all listeners of the given configuration and starts accepting connections at them.
+     *
+     * @throws ProxyNotStartedException if any of the listeners can't be bound
+     */
+    public void start(ServerConfig config) {
+        List<ServerSocket> boundListeners;
         try {
-            serverSocket = new ServerSocket(port);
-            serverSocket.setReuseAddress(port != 0);
+            boundListeners = config.bind();
         } catch (IOException e) {
             throw new ProxyNotStartedException(e);
         }
-
-        client = new OkHttpClient();
+        this.config = config;
+        this.listeners = boundListeners;
+        ResourceProfile profile = resourceProfile;
 
         ThreadFactory threadFactory = ExceptionHandlingThreadFactory.loggingExceptionThreadFactory();
-        executor = Executors.newCachedThreadPool(threadFactory);
+        executor = newWorkerPool(profile, threadFactory);
+        backgroundExecutor = newOnDemandPool(profile, threadFactory);
+
+        OkHttpClient client = new OkHttpClient();
+        client.setDispatcher(new Dispatcher(backgroundExecutor));
+        if (profile.getWorkerThreads() > 0) {
+            client.setConnectionPool(new ConnectionPool(1, profile.getIdleTimeoutMillis()));
+        }
+        // calls are enqueued only to wait for response headers, don't let them queue up behind each other
+        client.getDispatcher().setMaxRequests(Integer.MAX_VALUE);
+        client.getDispatcher().setMaxRequestsPerHost(Integer.MAX_VALUE);
+        client.networkInterceptors().add(new Interceptor() {
+            @Override
+            public Response intercept(Chain chain) throws IOException {
+                Object tag = chain.request().tag();
+                if (tag instanceof RequestTrace) {
+                    ((RequestTrace) tag).end(RequestTrace.Phase.UPSTREAM_CONNECT);
+                }
+                return chain.proceed(chain.request());
+            }
+        });
+        transport.setDefaultTransport(new OkHttpTransport(client));
+        prefetcher = new Prefetcher(transport, memoryBudget);
+
+        // forked streams are created and written off the serving thread, so they don't delay the client,
+        // unless the sink falls behind, then the client waits rather than the recording being lost
+        asyncStreamFactory = streamFactory instanceof FanOutForkedStreamFactory ? streamFactory
+                : new FanOutForkedStreamFactory(backgroundExecutor,
+                        FanOutForkedStreamFactory.DEFAULT_MAX_BUFFERED_BYTES, memoryBudget,
+                        profile.getForkFlushBytes(), true, streamFactory);
+
+        // offsets in the journal would not match transformed bytes
+        resumer = journal != null && transformerFactories.isEmpty()
+                ? new RecordingResumer(journal, (ResumableForkedStreamFactory) streamFactory, backgroundExecutor,
+                        memoryBudget, profile.getForkFlushBytes())
+                : null;
+
+        List<Thread> threads = new ArrayList<>();
+        for (ServerSocket listener : listeners) {
+            for (int i = 0; i < config.getAcceptorsPerListener(); i++) {
+                threads.add(threadFactory.newThread(new Acceptor(listener)));
+            }
+        }
+        acceptorThreads = threads;
+        for (Thread thread : threads) {
+            thread.start();
+        }
+    }
+
+    /**
+     * Pool for client sessions, spawning threads on demand unless profile limits the number of workers.
+     * Limited pool queues only a few sessions and rejects the rest. Either way, idle workers are terminated
+     * after the profile's idle timeout.
+     */
+    private static ExecutorService newWorkerPool(ResourceProfile profile, ThreadFactory threadFactory) {
+        if (profile.getWorkerThreads() == 0) {
+            return newOnDemandPool(profile, threadFactory);
+        }
+
+        BlockingQueue<Runnable> pending = profile.getPendingSessions() > 0
+                ? new LinkedBlockingQueue<Runnable>(profile.getPendingSessions())
+                : new SynchronousQueue<Runnable>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(profile.getWorkerThreads(), profile.getWorkerThreads(),
+                profile.getIdleTimeoutMillis(), TimeUnit.MILLISECONDS, pending, threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Unbounded pool which never queues tasks, for tasks which last as long as the stream they belong to.
+     * Their number is bounded by the number of sessions anyway.
+     */
+    private static ExecutorService newOnDemandPool(ResourceProfile profile, ThreadFactory threadFactory) {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, profile.getIdleTimeoutMillis(), TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory);
+    }
 
-        serverThread = threadFactory.newThread(this);
-        serverThread.start();
+    public void start(int port) {
+        start(ServerConfig.forPort(port));
     }
 
     public void start() {
@@ -64,42 +199,60 @@ public class StreamProxy implements Runnable {
     }
 
     public void shutdown() {
-        if (serverThread == null) {
+        if (acceptorThreads == null) {
             throw new IllegalStateException("Cannot shutdown proxy, it has not been started");
         }
 
-        executor.shutdownNow();
-        closeClientSockets();
-
-        serverThread.interrupt();
-        closeQuietly(serverSocket);
-        joinUninterruptibly(serverThread);
-
-        serverThread = null;
-    }
+        for (Runnable pending : executor.shutdownNow()) {
+            abandon(((SessionTask) pending).session);
+        }
+        backgroundExecutor.shutdownNow();
+        sessions.cancelAll();
+        prefetcher.clear();
 
-    private void closeClientSockets() {
-        for (Iterator<Socket> s = clientSockets.iterator(); s.hasNext(); ) {
-            closeQuietly(s.next());
-            s.remove();
+        for (Thread thread : acceptorThreads) {
+            thread.interrupt();
         }
+        for (ServerSocket listener : listeners) {
+            closeQuietly(listener);
+        }
+        for (Thread thread : acceptorThreads) {
+            joinUninterruptibly(thread);
+        }
+
+        acceptorThreads = null;
     }
 
+    /**
+     * Accepts connections at the first listener. Acceptor threads started by {@link #start(ServerConfig)}
+     * already do this for every listener, so calling it directly only adds one more acceptor.
+     */
     @Override
     public void run() {
-        if (serverThread == null) {
+        if (acceptorThreads == null) {
             throw new IllegalStateException("Proxy must be started first");
         }
 
+        acceptConnections(listeners.get(0));
+    }
+
+    private void acceptConnections(ServerSocket listener) {
         while (!Thread.currentThread().isInterrupted()) {
             try {
-                final Socket clientSocket = serverSocket.accept();
-                executor.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        serveClientRequest(clientSocket);
-                    }
-                });
+                Socket clientSocket = listener.accept();
+                try {
+                    config.configure(clientSocket);
+                } catch (IOException e) {
+                    closeQuietly(clientSocket);
+                    throw e;
+                }
+
+                ProxySession session = sessions.register(clientSocket);
+                try {
+                    executor.execute(new SessionTask(session));
+                } catch (RejectedExecutionException e) {
+                    reject(session);
+                }
 
             } catch (RuntimeException e) { // protect while(){} from any runtime exception
                 Thread t = Thread.currentThread();
@@ -111,27 +264,144 @@ public class StreamProxy implements Runnable {
         }
     }
 
-    private void serveClientRequest(final Socket clientSocket) {
-        clientSockets.add(clientSocket);
+    /**
+     * Answers right away, without reading the request, that there's no worker to serve it.
+     */
+    private void reject(ProxySession session) {
+        logger.warning("Rejecting connection #" + session.getId() + ", all workers are busy");
+        sessions.unregister(session); // before the client sees the connection closed
+        try {
+            writeEmptyResponse(session, 503, "Service Unavailable", new Headers.Builder().set("Retry-After", "1"));
+        } catch (IOException ignored) {
+        } finally {
+            closeQuietly(session.getClientSocket());
+        }
+    }
+
+    /**
+     * Closes a session which has never been served.
+     */
+    private void abandon(ProxySession session) {
+        sessions.unregister(session); // before the client sees the connection closed
+        closeQuietly(session.getClientSocket());
+    }
+
+    private class SessionTask implements Runnable {
+
+        private final ProxySession session;
+
+        SessionTask(ProxySession session) {
+            this.session = session;
+        }
+
+        @Override
+        public void run() {
+            serveClientRequest(session);
+        }
+    }
+
+    private class Acceptor implements Runnable {
+
+        private final ServerSocket listener;
+
+        Acceptor(ServerSocket listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            acceptConnections(listener);
+        }
+    }
+
+    private void serveClientRequest(ProxySession session) {
         BufferedSource source = null;
 
         try {
-            source = Okio.buffer(Okio.source(clientSocket));
+            source = Okio.buffer(Okio.source(session.getClientSocket()));
+
+            RequestLine requestLine = RequestLine.parse(source.readUtf8LineStrict());
+            if (requestLine == null) {
+                writeEmptyResponse(session, HttpURLConnection.HTTP_BAD_REQUEST, "Bad Request", new Headers.Builder());
+                return;
+            }
+
+            String url = requestLine.getUrl();
+            session.setRequestLine(requestLine);
+            session.getTrace().setRequest(requestLine.getMethod() + " " + url);
+            if (requestLine.getMethod().equals("OPTIONS")) {
+                writeEmptyResponse(session, HttpURLConnection.HTTP_OK, "OK", allowHeader());
+                return;
+            }
 
-            String url = parseGetRequestUrl(source);
             Properties queryParams = parseQueryParams(url);
-            Response response = executeRealRequest(source, url);
+            if (TRACES_PATH.equals("/" + url)) {
+                buildHeaders(source);
+                serveTraces(session, requestLine.getMethod().equals("HEAD"));
+                return;
+            }
 
-            if (Thread.currentThread().isInterrupted()) return;
+            Request request = buildRequest(source, requestLine.getMethod(), url);
+            session.getTrace().end(RequestTrace.Phase.PARSE);
 
-            writeClientResponse(clientSocket, response, queryParams);
+            if (requestLine.getMethod().equals("HEAD")) {
+                serveHeadRequest(session, url, request, queryParams);
+                return;
+            }
+
+            Response notModified = metadataCache.notModified(url, request);
+            if (notModified != null) {
+                writeHeadersOnly(session, notModified);
+                return;
+            }
+
+            long resumedFrom = 0;
+            Response response = null;
+            HotCache hotCache = this.hotCache;
+            if (hotCache != null && HotCache.accepts(request)) {
+                response = executeCachedRequest(session, hotCache, url, request);
+            }
+
+            RecordingJournal.Record record = response == null && resumer != null
+                    ? resumer.recordToResume(url, request) : null;
+            if (record != null) {
+                response = resumeRecording(session, url, request, queryParams, record);
+                resumedFrom = response != null ? record.getOffset() : 0;
+            }
+            if (response == null) {
+                response = executeRealRequest(session, request);
+            }
+            metadataCache.update(url, response);
+            if (hotCache != null && response.networkResponse() != null) { // skip hits and synthesized responses
+                response = hotCache.capture(url, request, response);
+            }
+
+            if (Thread.currentThread().isInterrupted() || session.isCancelled()) {
+                closeQuietly(response.body());
+                return;
+            }
+
+            session.getTrace().begin(RequestTrace.Phase.FORK);
+            ForkedStream forkedStream = createForkedStream(url, response, queryParams, resumedFrom);
+            session.getTrace().end(RequestTrace.Phase.FORK);
+
+            writeClientResponse(session, response, forkedStream, queryParams);
+
+        } catch (ProxyRequestNotSupportedException e) {
+            try {
+                writeEmptyResponse(session, HttpURLConnection.HTTP_BAD_METHOD, "Method Not Allowed", allowHeader());
+            } catch (IOException ignored) {
+            }
 
         } catch (IOException e) {
-            logger.log(Level.WARNING, "Exception while serving client request", e);
+            if (!session.isCancelled()) {
+                logger.log(Level.WARNING, "Exception while serving request #" + session.getId(), e);
+            }
 
         } finally {
             closeQuietly(source);
-            clientSockets.remove(clientSocket);
+            traces.finish(session.getTrace());
+            sessions.unregister(session);
         }
     }
 
@@ -145,19 +415,6 @@ public class StreamProxy implements Runnable {
         return queryParams;
     }
 
-    private String parseGetRequestUrl(BufferedSource source) throws IOException {
-        String requestLine = source.readUtf8LineStrict();
-        StringTokenizer st = new StringTokenizer(requestLine);
-
-        String method = st.nextToken();
-        if (!method.equalsIgnoreCase("GET")) {
-            throw new ProxyRequestNotSupportedException("Unable to serve request, only GET is supported");
-        }
-
-        String url = st.nextToken();
-        return url.substring(1); // skip leading "/"
-    }
-
     private Headers.Builder buildHeaders(BufferedSource source) throws IOException {
         Headers.Builder headers = new Headers.Builder();
         String header;
@@ -167,69 +424,401 @@ public class StreamProxy implements Runnable {
         return headers;
     }
 
-    private Response executeRealRequest(BufferedSource source, String realUri) throws IOException {
+    private Request buildRequest(BufferedSource source, String method, String realUri) throws IOException {
         Headers.Builder headers = buildHeaders(source);
-        Request request = new Request.Builder()
+        if (!upstreamCompression && headers.get("Accept-Encoding") == null) {
+            // otherwise OkHttp asks for gzip and decodes it on the fly
+            headers.set("Accept-Encoding", "identity");
+        }
+        return new Request.Builder()
                 .url(realUri)
                 .headers(headers.build())
+                .method(method, null)
                 .build();
-        return client.newCall(request).execute();
     }
 
-    private void writeClientResponse(Socket clientSocket, Response response, Properties props) throws IOException {
-        ForkedStream forkedStream = streamFactory.createForkedStream(props);
+    /**
+     * Answers from cached metadata if it's fresh, otherwise revalidates it with a conditional HEAD.
+     * Body is never requested from upstream.
+     * <p>
+     * Metadata describes bodies as upstream sends them, so with transformations it's only used
+     * for {@code 304 Not Modified}, and headers of the upstream response are transformed instead.
+     */
+    private void serveHeadRequest(ProxySession session, String url, Request request, Properties props)
+            throws IOException {
+
+        Response notModified = metadataCache.notModified(url, request);
+        if (notModified != null) {
+            writeHeadersOnly(session, notModified);
+            return;
+        }
+
+        if (!transformerFactories.isEmpty()) {
+            Response response = executeRealRequest(session, request);
+            metadataCache.update(url, response);
+            Response transformed = transformResponse(response, props);
+            closeQuietly(transformed.body());
+            writeHeadersOnly(session, transformed);
+            return;
+        }
+
+        MetadataCache.Metadata metadata = metadataCache.get(url);
+        if (metadata != null && metadata.isFresh()) {
+            writeEmptyResponse(session, HttpURLConnection.HTTP_OK, "OK", metadata.headers.newBuilder());
+            return;
+        }
+
+        boolean revalidating = metadata != null && !isConditional(request);
+        if (revalidating) {
+            request = metadata.addValidators(request.newBuilder()).build();
+        }
+
+        Response response = executeRealRequest(session, request);
+        closeQuietly(response.body());
+        metadataCache.update(url, response);
+
+        metadata = metadataCache.get(url);
+        if (revalidating && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED && metadata != null) {
+            writeEmptyResponse(session, HttpURLConnection.HTTP_OK, "OK", metadata.headers.newBuilder());
+        } else {
+            writeHeadersOnly(session, response);
+        }
+    }
+
+    private boolean isConditional(Request request) {
+        return request.header("If-None-Match") != null || request.header("If-Modified-Since") != null;
+    }
+
+    private Headers.Builder allowHeader() {
+        StringBuilder allowed = new StringBuilder();
+        for (String method : RequestLine.SUPPORTED_METHODS) {
+            if (allowed.length() != 0) allowed.append(", ");
+            allowed.append(method);
+        }
+        return new Headers.Builder().add("Allow", allowed.toString());
+    }
+
+    private Response executeRealRequest(ProxySession session, Request request) throws IOException {
+        session.setState(SessionSnapshot.State.CONNECTING);
+        RequestTrace trace = session.getTrace();
+        trace.begin(RequestTrace.Phase.UPSTREAM_HEADERS);
+        trace.begin(RequestTrace.Phase.UPSTREAM_CONNECT);
+
         try {
-            writeResponse(clientSocket, response, forkedStream);
+            Response prefetched = prefetcher.newResponse(request, session);
+            if (prefetched != null) {
+                return prefetched;
+            }
+            // network interceptor of OkHttp ends connecting phase
+            UpstreamCall call = transport.newCall(request.newBuilder().tag(trace).build());
+            session.setCall(call);
+            return awaitResponse(session, call);
+
+        } finally {
+            trace.end(RequestTrace.Phase.UPSTREAM_CONNECT);
+            trace.end(RequestTrace.Phase.UPSTREAM_HEADERS);
+        }
+    }
+
+    /**
+     * @return response made of cached body, unless upstream says that stale entry has been modified;
+     * {@code null} if there's no entry
+     */
+    private Response executeCachedRequest(ProxySession session, HotCache hotCache, String url, Request request)
+            throws IOException {
+
+        HotCache.Entry entry = hotCache.get(url);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isFreshFor(request)) {
+            return entry.newResponse(request);
+        }
+
+        Response response = executeRealRequest(session, entry.addValidators(request.newBuilder()).build());
+        if (response.code() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+            return response;
+        }
+        closeQuietly(response.body());
+        metadataCache.update(url, response);
+        return hotCache.refresh(url, entry, response).newResponse(request);
+    }
+
+    /**
+     * Waits for upstream response while checking that client is still there.
+     * Upstream call is cancelled as soon as client disconnects or serving thread is interrupted.
+     */
+    private Response awaitResponse(ProxySession session, UpstreamCall call) throws IOException {
+        PendingResponse pending = new PendingResponse();
+        call.enqueue(pending);
+        try {
+            while (true) {
+                Response response = pending.await(resourceProfile.getDisconnectCheckIntervalMillis());
+                if (response != null) {
+                    return response;
+                }
+                if (isClientGone(session.getClientSocket())) {
+                    call.cancel();
+                    pending.discard();
+                    throw new IOException("Client disconnected before upstream responded");
+                }
+            }
+        } catch (InterruptedException e) {
+            call.cancel();
+            pending.discard();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for upstream response");
+        }
+    }
+
+    /**
+     * Request has been read by now and client has nothing more to send,
+     * so end of stream means it has closed the connection.
+     */
+    private boolean isClientGone(Socket clientSocket) {
+        try {
+            clientSocket.setSoTimeout(1);
+            return clientSocket.getInputStream().read() == -1;
+
+        } catch (SocketTimeoutException e) {
+            return false;
+
+        } catch (IOException e) {
+            return true;
+
+        } finally {
+            try {
+                clientSocket.setSoTimeout(0);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * @return response made of recorded bytes and the rest of them fetched from upstream,
+     * or {@code null} if the recording can't be resumed
+     */
+    private Response resumeRecording(ProxySession session, String url, Request request, Properties props,
+                                     RecordingJournal.Record record) throws IOException {
+
+        Source recorded = resumer.openRecorded(url, props);
+        if (recorded == null) {
+            return null;
+        }
+
+        Response remainder;
+        try {
+            remainder = executeRealRequest(session, resumer.remainderRequest(request, record));
+        } catch (IOException e) {
+            closeQuietly(recorded);
+            throw e;
+        }
+        return resumer.splice(url, request, record, recorded, remainder);
+    }
+
+    private ForkedStream createForkedStream(String url, Response response, Properties props, long resumedFrom) {
+        ForkedStream forkedStream = null;
+        if (resumer != null) {
+            forkedStream = resumer.createForkedStream(url, response, props, resumedFrom);
+        }
+        return forkedStream != null ? forkedStream : asyncStreamFactory.createForkedStream(props);
+    }
+
+    private void writeClientResponse(ProxySession session, Response response, ForkedStream forkedStream,
+                                     Properties props) throws IOException {
+
+        session.setForkedStream(forkedStream);
+        session.setState(SessionSnapshot.State.RELAYING);
+        boolean complete = false;
+        try {
+            complete = writeResponse(session, transformResponse(response, props), forkedStream);
         } catch (IOException e) {
-            forkedStream.abort();
+            closeQuietly(response.body());
             throw e;
         } finally {
-            if (Thread.currentThread().isInterrupted()) {
-                // might be called twice, but that's fine
+            if (!complete) {
                 forkedStream.abort();
             }
         }
     }
 
-    private void writeResponse(Socket clientSocket, Response response, ForkedStream forkedStream)
+    private Response transformResponse(Response response, Properties props) throws IOException {
+        Response transformed = response;
+        for (StreamTransformerFactory factory : transformerFactories) {
+            StreamTransformer transformer = factory.createTransformer(transformed, props);
+            if (transformer == null) continue;
+
+            ResponseBody body = transformed.body();
+            Source source = transformer.transform(body.source());
+            transformed = transformed.newBuilder()
+                    .headers(transformer.transformHeaders(transformed.headers()))
+                    .body(ResponseBody.create(body.contentType(), -1, Okio.buffer(source)))
+                    .build();
+        }
+        return transformed;
+    }
+
+    /**
+     * @return {@code true} if the whole body has been relayed and the forked stream has been closed
+     */
+    private boolean writeResponse(ProxySession session, Response response, ForkedStream forkedStream)
             throws IOException {
 
+        ResponseFraming framing = new ResponseFraming(response, session.getRequestLine().isHttp11());
         BufferedSource source = response.body().source();
-        BufferedSink sink = Okio.buffer(Okio.sink(clientSocket));
+        BufferedSink sink = Okio.buffer(Okio.sink(session.getClientSocket()));
+        RequestTrace trace = session.getTrace();
+        trace.begin(RequestTrace.Phase.FIRST_BYTE);
+        long coalescingMillis = resourceProfile.getReadCoalescingMillis();
+        ChunkSizer sizer = new ChunkSizer(minChunkSize, maxChunkSize, memoryBudget);
 
         try {
-            writeStatusLine(response, sink);
-            writeHeaders(response, sink);
+            writeStatusLine(response.code(), response.message(), sink);
+            writeHeaders(framing.headers(), sink);
             sink.flush();
 
-            byte[] buffer = new byte[16384];
+            BufferedSink body = framing.bodySink(sink);
+            byte[] buffer = new byte[sizer.size()];
+            session.setChunkSize(buffer.length);
+            boolean firstChunk = true;
             while (!Thread.currentThread().isInterrupted()) {
-                int read = source.read(buffer);
+                int read = readChunk(source, buffer);
                 if (read == -1) {
-                    break;
+                    body.close(); // completes chunked body
+                    forkedStream.close();
+                    return true;
                 }
 
-                sink.write(buffer, 0, read);
-                sink.flush();
+                long writeStart = System.nanoTime();
+                body.write(buffer, 0, read);
+                body.flush();
+                long writeNanos = System.nanoTime() - writeStart;
+                if (firstChunk) {
+                    trace.end(RequestTrace.Phase.FIRST_BYTE);
+                    trace.begin(RequestTrace.Phase.RELAY);
+                    firstChunk = false;
+                }
 
                 forkedStream.write(buffer, 0, read);
                 forkedStream.flush();
+
+                session.addBytesRelayed(read);
+
+                boolean shortRead = read < buffer.length;
+                if (sizer.update(read, writeNanos)) {
+                    buffer = new byte[sizer.size()];
+                    session.setChunkSize(buffer.length);
+                }
+                if (shortRead && coalescingMillis > 0) {
+                    // let more bytes arrive, so they're picked up with a single wake-up
+                    Thread.sleep(coalescingMillis);
+                }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+        } catch (IOException e) {
+            session.cancelUpstream(); // otherwise closing the source would drain what's left of the body
+            throw e;
+
         } finally {
+            sizer.release();
             closeQuietly(source);
             closeQuietly(sink);
-            closeQuietly(forkedStream);
         }
+        return false;
     }
 
-    private void writeStatusLine(Response response, BufferedSink sink) throws IOException {
-        String protocol = response.protocol().toString().toUpperCase(Locale.US);
-        String statusLine = String.format("%s %d %s\r\n", protocol, response.code(), response.message());
+    /**
+     * Blocks until some bytes are available, then takes as many of them as are ready at once,
+     * up to the size of the buffer. Waiting for more would delay the bytes already read.
+     *
+     * @return count of bytes read, or {@code -1} if the source is exhausted
+     */
+    private int readChunk(BufferedSource source, byte[] buffer) throws IOException {
+        int filled = 0;
+        while (filled < buffer.length) {
+            int remaining = buffer.length - filled;
+            int read = source.read(buffer, filled, remaining);
+            if (read == -1) {
+                return filled == 0 ? -1 : filled;
+            }
+            filled += read;
+            if (read < Math.min(READ_SEGMENT_SIZE, remaining)) {
+                break;
+            }
+        }
+        return filled;
+    }
+
+    private void writeHeadersOnly(ProxySession session, Response response) throws IOException {
+        ResponseFraming framing = new ResponseFraming(response, session.getRequestLine().isHttp11());
+        BufferedSink sink = Okio.buffer(Okio.sink(session.getClientSocket()));
+        try {
+            writeStatusLine(response.code(), response.message(), sink);
+            writeHeaders(framing.headers(), sink);
+            sink.flush();
+        } finally {
+            closeQuietly(sink);
+        }
+    }
+
+    /**
+     * Only loopback clients are allowed, traces reveal URLs being played.
+     */
+    private void serveTraces(ProxySession session, boolean headersOnly) throws IOException {
+        if (!session.getClientSocket().getInetAddress().isLoopbackAddress()) {
+            writeEmptyResponse(session, HttpURLConnection.HTTP_FORBIDDEN, "Forbidden", new Headers.Builder());
+            return;
+        }
+
+        Buffer body = new Buffer().writeUtf8(traces.dump());
+        BufferedSink sink = Okio.buffer(Okio.sink(session.getClientSocket()));
+        try {
+            writeStatusLine(HttpURLConnection.HTTP_OK, "OK", sink);
+            writeHeaders(new Headers.Builder()
+                    .set("Content-Type", "text/plain; charset=utf-8")
+                    .set("Content-Length", String.valueOf(body.size()))
+                    .set("Cache-Control", "no-store")
+                    .set("Connection", "close")
+                    .build(), sink);
+            if (!headersOnly) {
+                sink.writeAll(body);
+            }
+            sink.flush();
+        } finally {
+            closeQuietly(sink);
+        }
+    }
+
+    /**
+     * Writes a response without body which is generated by the proxy itself.
+     */
+    private void writeEmptyResponse(ProxySession session, int code, String message, Headers.Builder headers)
+            throws IOException {
+
+        BufferedSink sink = Okio.buffer(Okio.sink(session.getClientSocket()));
+        try {
+            writeStatusLine(code, message, sink);
+            if (headers.get("Content-Length") == null) {
+                headers.set("Content-Length", "0");
+            }
+            writeHeaders(headers.set("Connection", "close").build(), sink);
+            sink.flush();
+        } finally {
+            closeQuietly(sink);
+        }
+    }
+
+    /**
+     * Clients always get HTTP/1.1, whichever protocol has been used upstream.
+     */
+    private void writeStatusLine(int code, String message, BufferedSink sink) throws IOException {
+        String statusLine = String.format("HTTP/1.1 %d %s\r\n", code, message);
         sink.writeUtf8(statusLine);
     }
 
-    private void writeHeaders(Response response, BufferedSink sink) throws IOException {
-        Headers headers = response.headers();
+    private void writeHeaders(Headers headers, BufferedSink sink) throws IOException {
         for (int i = 0, size = headers.size(); i < size; i++) {
             sink.writeUtf8(headers.name(i));
             sink.writeUtf8(": ");
@@ -239,15 +828,189 @@ public class StreamProxy implements Runnable {
         sink.writeUtf8("\r\n");
     }
 
+    /**
+     * @return port of the first listener
+     */
     public int getPort() {
-        if (serverThread == null) {
+        if (acceptorThreads == null) {
             throw new IllegalStateException("Proxy must be started before obtaining port number");
         }
 
-        return serverSocket.getLocalPort();
+        return listeners.get(0).getLocalPort();
+    }
+
+    /**
+     * @return ports of all listeners, in the order they were configured
+     */
+    public List<Integer> getPorts() {
+        if (acceptorThreads == null) {
+            throw new IllegalStateException("Proxy must be started before obtaining port numbers");
+        }
+
+        List<Integer> ports = new ArrayList<>(listeners.size());
+        for (ServerSocket listener : listeners) {
+            ports.add(listener.getLocalPort());
+        }
+        return ports;
+    }
+
+    /**
+     * Prepares upstream for the given URLs in background: resolves their hosts and opens connections
+     * to be reused by subsequent requests.
+     * <p>
+     * If {@code prefetchBytes} is positive, that many leading bytes of each resource are kept in memory
+     * and served to clients without waiting for upstream. This requires upstream to support ranges.
+     *
+     * @return one future per URL, completed once its warm-up is over
+     */
+    public List<Future<?>> warmUp(List<String> urls, final int prefetchBytes) {
+        if (acceptorThreads == null) {
+            throw new IllegalStateException("Proxy must be started before warming up");
+        }
+
+        List<Future<?>> futures = new ArrayList<>(urls.size());
+        for (final String url : urls) {
+            futures.add(backgroundExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prefetcher.warmUp(url, prefetchBytes);
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Exception while warming up " + url, e);
+                    }
+                }
+            }));
+        }
+        return futures;
+    }
+
+    public List<Future<?>> warmUp(List<String> urls) {
+        return warmUp(urls, 0);
+    }
+
+    /**
+     * @return snapshots of sessions being served at the moment, in no particular order
+     */
+    public List<SessionSnapshot> getSessions() {
+        return sessions.snapshot();
+    }
+
+    /**
+     * Traces are also served to loopback clients at {@link #TRACES_PATH}.
+     *
+     * @return traces of recently finished requests, most recent first
+     */
+    public List<RequestTrace> getRecentTraces() {
+        return traces.recent();
+    }
+
+    /**
+     * Sets how long a client may wait for the first byte of response before its request gets logged
+     * as slow, along with its phase breakdown. Zero or negative disables the log. Defaults to 2 seconds.
+     */
+    public void setSlowRequestThreshold(long millis) {
+        traces.setSlowThresholdMillis(millis);
+    }
+
+    /**
+     * Drops client connection of the session and cancels its upstream request.
+     *
+     * @return {@code false} if there's no such session, e.g. it has already been closed
+     */
+    public boolean cancelSession(long id) {
+        return sessions.cancel(id);
+    }
+
+    /**
+     * Sets whether upstream may be asked for compressed responses on behalf of clients which didn't ask
+     * for compression themselves. Such responses are decoded by the proxy.
+     * <p>
+     * Disable for already compressed media to save the CPU spent decoding and keep {@code Content-Length}
+     * intact. Compressed responses requested by clients themselves are always passed through untouched.
+     * Enabled by default.
+     */
+    public void setUpstreamCompression(boolean enabled) {
+        this.upstreamCompression = enabled;
+    }
+
+    /**
+     * Makes the proxy journal progress of recordings and resume interrupted ones: bytes which have already
+     * been recorded are served from the recording, and only the rest is fetched from upstream.
+     * <p>
+     * Requires {@link ResumableForkedStreamFactory}, and upstream which supports ranges and validators.
+     * Not used if transformations have been added. Takes effect on next {@link #start(int)}.
+     */
+    public void setRecordingJournal(RecordingJournal journal) {
+        if (journal != null && !(streamFactory instanceof ResumableForkedStreamFactory)) {
+            throw new IllegalArgumentException("Resuming recordings requires ResumableForkedStreamFactory");
+        }
+        this.journal = journal;
+    }
+
+    /**
+     * Keeps complete responses up to {@code maxEntryBytes} long in memory, at most {@code maxBytes}
+     * of them in total, and serves them without touching the network while they're fresh.
+     * Stale ones are revalidated with a conditional request.
+     * <p>
+     * Meant for small resources requested over and over, like playlists and segments of HLS streams.
+     * Zero {@code maxBytes} disables the cache, which is the default.
+     */
+    public synchronized void setHotCache(long maxBytes, int maxEntryBytes) {
+        HotCache previous = hotCache;
+        hotCache = maxBytes > 0 ? new HotCache(maxBytes, maxEntryBytes, memoryBudget) : null;
+        if (previous != null) {
+            previous.clear(); // gives its memory back to the budget
+        }
+    }
+
+    /**
+     * Makes the proxy fetch URLs of the given scheme with the given transport, e.g. {@link FileTransport}
+     * for {@code file} or {@link InMemoryTransport} for a made-up one. {@code http} and {@code https} are
+     * fetched with {@link OkHttpTransport} unless overridden. {@code null} transport restores the default.
+     */
+    public void setUpstreamTransport(String scheme, UpstreamTransport transport) {
+        if (transport != null) {
+            this.transport.register(scheme, transport);
+        } else {
+            this.transport.unregister(scheme);
+        }
+    }
+
+    /**
+     * Sets bounds for the size of chunks in which responses are relayed to clients and forked streams.
+     * Within them, the size adapts to throughput of each stream and to how fast its client drains it,
+     * see {@link SessionSnapshot#getChunkSize()}. Defaults to 4 KiB and 256 KiB.
+     */
+    public void setChunkSizeBounds(int minSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("Invalid chunk size bounds: " + minSize + ", " + maxSize);
+        }
+        this.minChunkSize = minSize;
+        this.maxChunkSize = maxSize;
+    }
+
+    /**
+     * Sets how many threads, how much memory and how many wake-ups the proxy may spend, e.g.
+     * {@link ResourceProfile#lowPower()} for long background recordings on battery.
+     * <p>
+     * Memory limit, chunk size bounds and read coalescing apply right away, to new streams.
+     * Thread pools, disconnect checks and flushing of forked streams follow on next {@link #start(ServerConfig)}.
+     */
+    public void setResourceProfile(ResourceProfile profile) {
+        this.resourceProfile = profile;
+        memoryBudget.setLimit(profile.getMemoryLimitBytes());
+        setChunkSizeBounds(profile.getMinChunkSize(), profile.getMaxChunkSize());
     }
 
     public ForkedStreamFactory getForkedStreamFactory() {
         return streamFactory;
     }
+
+    /**
+     * Adds a transformation stage between upstream and both the client and the {@link ForkedStream}.
+     * Stages are applied in the order they were added.
+     */
+    public void addTransformerFactory(StreamTransformerFactory factory) {
+        transformerFactories.add(factory);
+    }
 }
@@ -0,0 +1,27 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Headers;
+import okio.Source;
+
+import java.io.IOException;
+
+/**
+ * Streaming transformation applied to a proxied response before it reaches the client
+ * and the {@link ForkedStream}, e.g. decoding, decryption or tag stripping.
+ * <p>
+ * Implementations must work incrementally on the bytes they are asked for
+ * and never buffer the whole body.
+ */
+public interface StreamTransformer {
+
+    /**
+     * Rewrites response headers to describe the transformed body,
+     * e.g. drops {@code Content-Length} if the transformation changes it.
+     */
+    Headers transformHeaders(Headers headers);
+
+    /**
+     * Wraps upstream body. Closing returned source must close {@code source} as well.
+     */
+    Source transform(Source source) throws IOException;
+}
@@ -0,0 +1,13 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Response;
+
+import java.util.Properties;
+
+public interface StreamTransformerFactory {
+
+    /**
+     * @return transformer for the given response, or {@code null} if it should be relayed untouched
+     */
+    StreamTransformer createTransformer(Response response, Properties props);
+}
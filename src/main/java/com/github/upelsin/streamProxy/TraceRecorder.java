@@ -0,0 +1,72 @@
+package com.github.upelsin.streamProxy;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a bounded ring of traces of finished requests and logs the slow ones with their phase breakdown.
+ * <p>
+ * A request is slow if its client waited for the first byte longer than the threshold. Total duration
+ * is not considered, as it's dominated by the length of the media being relayed.
+ */
+class TraceRecorder {
+
+    static final int DEFAULT_CAPACITY = 128;
+
+    static final long DEFAULT_SLOW_THRESHOLD_MILLIS = 2000;
+
+    private final Logger logger = Logger.getLogger(TraceRecorder.class.getName());
+
+    private final int capacity;
+
+    private final Deque<RequestTrace> recent;
+
+    private volatile long slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_THRESHOLD_MILLIS);
+
+    TraceRecorder(int capacity) {
+        this.capacity = capacity;
+        this.recent = new ArrayDeque<>(capacity);
+    }
+
+    void finish(RequestTrace trace) {
+        trace.finish();
+        synchronized (recent) {
+            if (recent.size() == capacity) {
+                recent.removeLast();
+            }
+            recent.addFirst(trace);
+        }
+
+        if (trace.getTimeToFirstByteNanos() >= slowThresholdNanos) {
+            logger.warning("Slow request " + trace);
+        }
+    }
+
+    /**
+     * @param millis zero or negative disables the log
+     */
+    void setSlowThresholdMillis(long millis) {
+        slowThresholdNanos = millis > 0 ? TimeUnit.MILLISECONDS.toNanos(millis) : Long.MAX_VALUE;
+    }
+
+    /**
+     * @return finished traces, most recent first
+     */
+    List<RequestTrace> recent() {
+        synchronized (recent) {
+            return new ArrayList<>(recent);
+        }
+    }
+
+    String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (RequestTrace trace : recent()) {
+            sb.append(trace).append('\n');
+        }
+        return sb.toString();
+    }
+}
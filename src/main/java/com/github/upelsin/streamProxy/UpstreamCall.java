@@ -0,0 +1,28 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.Response;
+
+import java.io.IOException;
+
+/**
+ * Single request to upstream, made by {@link UpstreamTransport}.
+ */
+public interface UpstreamCall {
+
+    /**
+     * Blocks until response headers have arrived.
+     */
+    Response execute() throws IOException;
+
+    /**
+     * Delivers response headers or failure to the callback, possibly before returning.
+     */
+    void enqueue(Callback callback);
+
+    /**
+     * Fails the call if it's still in flight and releases its response body, if any.
+     * Safe to call from any thread, any number of times.
+     */
+    void cancel();
+}
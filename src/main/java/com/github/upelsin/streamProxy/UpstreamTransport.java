@@ -0,0 +1,15 @@
+package com.github.upelsin.streamProxy;
+
+import com.squareup.okhttp.Request;
+
+/**
+ * Fetches resources on behalf of clients. {@link OkHttpTransport} is used unless another transport
+ * has been registered for the scheme of requested URL, see {@link StreamProxy#setUpstreamTransport}.
+ * <p>
+ * Requests and responses are OkHttp's, so transformers, caches and forked streams don't care
+ * where the bytes come from.
+ */
+public interface UpstreamTransport {
+
+    UpstreamCall newCall(Request request);
+}
@@ -0,0 +1,63 @@
+package com.github.upelsin.streamProxy.test;
+
+import com.github.upelsin.streamProxy.DeduplicatingForkedStreamFactory;
+import com.github.upelsin.streamProxy.ForkedStream;
+import com.github.upelsin.streamProxy.test.mocks.MockForkedStreamFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link DeduplicatingForkedStreamFactory}.
+ */
+public class DeduplicatingForkedStreamFactoryTest {
+
+    private DeduplicatingForkedStreamFactory factory;
+
+    @Before
+    public void setUp() {
+        factory = new DeduplicatingForkedStreamFactory(new MockForkedStreamFactory(), "id");
+    }
+
+    @Test
+    public void should_not_record_same_key_twice_at_a_time() throws Exception {
+        ForkedStream first = factory.createForkedStream(propsWithId("1"));
+
+        assertNotNull(first);
+        assertNull(factory.createForkedStream(propsWithId("1")));
+        assertNotNull(factory.createForkedStream(propsWithId("2")));
+    }
+
+    @Test
+    public void should_record_key_again_once_previous_stream_is_closed() throws Exception {
+        factory.createForkedStream(propsWithId("1")).close();
+
+        assertFalse(factory.isInProgress("1"));
+        assertNotNull(factory.createForkedStream(propsWithId("1")));
+    }
+
+    @Test
+    public void should_not_release_key_of_next_recording_on_late_abort() throws Exception {
+        ForkedStream first = factory.createForkedStream(propsWithId("1"));
+        first.close();
+        factory.createForkedStream(propsWithId("1"));
+        first.abort();
+
+        assertTrue(factory.isInProgress("1"));
+    }
+
+    @Test
+    public void should_always_record_requests_without_key() throws Exception {
+        assertNotNull(factory.createForkedStream(new Properties()));
+        assertNotNull(factory.createForkedStream(new Properties()));
+    }
+
+    private Properties propsWithId(String id) {
+        Properties props = new Properties();
+        props.setProperty("id", id);
+        return props;
+    }
+}
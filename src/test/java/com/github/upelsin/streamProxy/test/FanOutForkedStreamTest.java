@@ -0,0 +1,149 @@
+package com.github.upelsin.streamProxy.test;
+
+import com.github.upelsin.streamProxy.FanOutForkedStreamFactory;
+import com.github.upelsin.streamProxy.ForkedStream;
+import com.github.upelsin.streamProxy.ForkedStreamFactory;
+import com.github.upelsin.streamProxy.test.mocks.MockForkedStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import static com.github.upelsin.streamProxy.test.StreamProxyTestUtils.await;
+import static com.github.upelsin.streamProxy.test.StreamProxyTestUtils.loadSampleMp3;
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link com.github.upelsin.streamProxy.FanOutForkedStream}.
+ */
+public class FanOutForkedStreamTest {
+
+    private static final byte[] BODY = loadSampleMp3().readByteArray();
+
+    private static final int CHUNK_SIZE = 16384;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(2000);
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void should_write_same_bytes_to_every_sink() throws Exception {
+        MockForkedStream first = new MockForkedStream(new Properties());
+        MockForkedStream second = new MockForkedStream(new Properties());
+
+        writeFully(newFanOutFactory(factoryOf(first), factoryOf(second)));
+
+        assertTrue(first.awaitClosed());
+        assertTrue(second.awaitClosed());
+        assertArrayEquals(BODY, first.toByteArray());
+        assertArrayEquals(BODY, second.toByteArray());
+    }
+
+    @Test
+    public void should_isolate_failing_sink() throws Exception {
+        MockForkedStream failing = new MockForkedStream(new Properties()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("Disk is full");
+            }
+        };
+        MockForkedStream healthy = new MockForkedStream(new Properties());
+
+        writeFully(newFanOutFactory(factoryOf(failing), factoryOf(healthy)));
+
+        assertTrue(healthy.awaitClosed());
+        assertArrayEquals(BODY, healthy.toByteArray());
+        assertFalse(healthy.isAborted());
+        assertTrue(failing.awaitAborted());
+    }
+
+    @Test
+    public void should_abort_sink_which_falls_behind_without_stalling_others() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        MockForkedStream slow = new MockForkedStream(new Properties()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                await(release);
+                super.write(b, off, len);
+            }
+        };
+        final Semaphore written = new Semaphore(0);
+        MockForkedStream fast = new MockForkedStream(new Properties()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                super.write(b, off, len);
+                written.release();
+            }
+        };
+
+        ForkedStream fanOut = new FanOutForkedStreamFactory(
+                executor, CHUNK_SIZE * 2, factoryOf(slow), factoryOf(fast))
+                .createForkedStream(new Properties());
+        for (int off = 0; off < BODY.length; off += CHUNK_SIZE) {
+            fanOut.write(BODY, off, Math.min(CHUNK_SIZE, BODY.length - off));
+            written.acquire(); // keep pace with the fast sink only
+        }
+        fanOut.close();
+        release.countDown();
+
+        assertTrue(fast.awaitClosed());
+        assertArrayEquals(BODY, fast.toByteArray());
+        assertTrue(slow.awaitAborted());
+    }
+
+    @Test
+    public void should_abort_every_sink() throws Exception {
+        MockForkedStream first = new MockForkedStream(new Properties());
+        MockForkedStream second = new MockForkedStream(new Properties());
+
+        ForkedStream fanOut = newFanOutFactory(factoryOf(first), factoryOf(second))
+                .createForkedStream(new Properties());
+        fanOut.write(BODY, 0, CHUNK_SIZE);
+        fanOut.close();
+        fanOut.abort();
+
+        assertTrue(first.awaitAborted());
+        assertTrue(second.awaitAborted());
+    }
+
+    private void writeFully(ForkedStreamFactory factory) throws IOException {
+        ForkedStream fanOut = factory.createForkedStream(new Properties());
+        for (int off = 0; off < BODY.length; off += CHUNK_SIZE) {
+            fanOut.write(BODY, off, Math.min(CHUNK_SIZE, BODY.length - off));
+            fanOut.flush();
+        }
+        fanOut.close();
+    }
+
+    private ForkedStreamFactory newFanOutFactory(ForkedStreamFactory... factories) {
+        return new FanOutForkedStreamFactory(executor, FanOutForkedStreamFactory.DEFAULT_MAX_BUFFERED_BYTES, factories);
+    }
+
+    private ForkedStreamFactory factoryOf(final ForkedStream stream) {
+        return new ForkedStreamFactory() {
+            @Override
+            public ForkedStream createForkedStream(Properties props) {
+                return stream;
+            }
+        };
+    }
+}
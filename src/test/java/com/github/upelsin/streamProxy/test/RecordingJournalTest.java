@@ -0,0 +1,104 @@
+package com.github.upelsin.streamProxy.test;
+
+import com.github.upelsin.streamProxy.RecordingJournal;
+import okio.BufferedSink;
+import okio.Okio;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for {@link RecordingJournal}.
+ */
+public class RecordingJournalTest {
+
+    private static final String URL = "http://example.com/track.mp3";
+
+    private static final String LAST_MODIFIED = "Mon, 19 Oct 2026 10:00:00 GMT";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "journal");
+    }
+
+    @Test
+    public void should_restore_progress_after_reopening() throws Exception {
+        RecordingJournal journal = new RecordingJournal(file);
+        journal.begin(URL, 4096, LAST_MODIFIED);
+        journal.progress(URL, 1024);
+        journal.close();
+
+        RecordingJournal.Record record = new RecordingJournal(file).get(URL);
+        assertEquals(4096, record.getLength());
+        assertEquals(1024, record.getOffset());
+        assertEquals(LAST_MODIFIED, record.getValidator());
+        assertFalse(record.isComplete());
+    }
+
+    @Test
+    public void should_restore_completed_and_forget_removed_recordings() throws Exception {
+        RecordingJournal journal = new RecordingJournal(file);
+        journal.begin(URL, 4096, "\"v1\"");
+        journal.complete(URL);
+        journal.begin("http://example.com/removed.mp3", 4096, "\"v1\"");
+        journal.remove("http://example.com/removed.mp3");
+        journal.close();
+
+        RecordingJournal reopened = new RecordingJournal(file);
+        assertTrue(reopened.get(URL).isComplete());
+        assertEquals(4096, reopened.get(URL).getOffset());
+        assertNull(reopened.get("http://example.com/removed.mp3"));
+    }
+
+    @Test
+    public void should_ignore_record_torn_by_crash() throws Exception {
+        RecordingJournal journal = new RecordingJournal(file);
+        journal.begin(URL, 4096, "\"v1\"");
+        journal.progress(URL, 1024);
+        journal.close();
+
+        BufferedSink sink = Okio.buffer(Okio.appendingSink(file));
+        sink.writeUtf8("PROGRESS\t" + URL + "\t20");
+        sink.close();
+
+        assertEquals(1024, new RecordingJournal(file).get(URL).getOffset());
+    }
+
+    @Test
+    public void should_ignore_progress_of_completed_recording() throws Exception {
+        RecordingJournal journal = new RecordingJournal(file);
+        journal.begin(URL, 4096, "\"v1\"");
+        journal.complete(URL);
+        journal.progress(URL, 1024);
+        journal.close();
+
+        assertTrue(new RecordingJournal(file).get(URL).isComplete());
+    }
+
+    @Test
+    public void should_forget_oldest_complete_recordings_beyond_limit() throws Exception {
+        RecordingJournal journal = new RecordingJournal(file);
+        for (int i = 0; i <= RecordingJournal.MAX_COMPLETE_RECORDS; i++) {
+            journal.begin(URL + i, 4096, "\"v1\"");
+            journal.complete(URL + i);
+        }
+        journal.begin(URL, 4096, "\"v1\"");
+        journal.close();
+
+        RecordingJournal reopened = new RecordingJournal(file);
+        assertNull(reopened.get(URL + 0));
+        assertTrue(reopened.get(URL + 1).isComplete());
+        assertTrue(reopened.get(URL + RecordingJournal.MAX_COMPLETE_RECORDS).isComplete());
+        assertNotNull(reopened.get(URL));
+    }
+}
@@ -1,6 +1,7 @@
 package com.github.upelsin.streamProxy.test;
 
 import com.github.upelsin.streamProxy.ProxyNotStartedException;
+import com.github.upelsin.streamProxy.ServerConfig;
 import com.github.upelsin.streamProxy.StreamProxy;
 import com.github.upelsin.streamProxy.Utils;
 import com.github.upelsin.streamProxy.test.mocks.MockForkedStreamFactory;
@@ -11,6 +12,7 @@ import org.junit.rules.Timeout;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.util.List;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
@@ -105,6 +107,45 @@ public class StreamProxyLifecycleTest {
         }
     }
 
+    @Test
+    public void should_listen_at_every_configured_port() {
+        proxy.start(new ServerConfig.Builder()
+                .addPort(0)
+                .addPort(DEFAULT_PORT)
+                .acceptorsPerListener(2)
+                .backlog(128)
+                .tcpNoDelay(true)
+                .build());
+
+        List<Integer> ports = proxy.getPorts();
+        assertThat(ports.size(), is(equalTo(2)));
+        assertThat(ports.get(0), is(equalTo(proxy.getPort())));
+        assertThat(ports.get(1), is(equalTo(DEFAULT_PORT)));
+        assertTrue(isProxyListeningAt(ports.get(0)));
+        assertTrue(isProxyListeningAt(DEFAULT_PORT));
+
+        proxy.shutdown();
+        assertFalse(isProxyListeningAt(ports.get(0)));
+        assertFalse(isProxyListeningAt(DEFAULT_PORT));
+    }
+
+    @Test
+    public void should_release_bound_ports_when_another_one_is_taken() throws Exception {
+        ServerSocket taken = new ServerSocket(DEFAULT_PORT);
+        ServerSocket free = new ServerSocket(0);
+        int freePort = free.getLocalPort();
+        free.close();
+
+        try {
+            proxy.start(new ServerConfig.Builder().addPort(freePort).addPort(DEFAULT_PORT).build());
+            fail();
+        } catch (ProxyNotStartedException e) {
+            assertFalse(isProxyListeningAt(freePort));
+        } finally {
+            taken.close();
+        }
+    }
+
     private boolean isProxyListeningAt(int port) {
         ServerSocket ss = null;
         try {
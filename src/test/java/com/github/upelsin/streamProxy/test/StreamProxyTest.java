@@ -1,20 +1,49 @@
 package com.github.upelsin.streamProxy.test;
 
+import com.github.upelsin.streamProxy.FileTransport;
+import com.github.upelsin.streamProxy.ForkedStream;
+import com.github.upelsin.streamProxy.ForkedStreamFactory;
+import com.github.upelsin.streamProxy.GzipDecodingTransformerFactory;
+import com.github.upelsin.streamProxy.Id3StrippingTransformerFactory;
+import com.github.upelsin.streamProxy.InMemoryTransport;
+import com.github.upelsin.streamProxy.RecordingJournal;
+import com.github.upelsin.streamProxy.RequestTrace;
+import com.github.upelsin.streamProxy.ResourceProfile;
+import com.github.upelsin.streamProxy.ResumableForkedStreamFactory;
+import com.github.upelsin.streamProxy.SessionSnapshot;
+import com.github.upelsin.streamProxy.StreamProxy;
 import com.github.upelsin.streamProxy.test.mocks.MockForkedStream;
 import com.github.upelsin.streamProxy.test.mocks.MockForkedStreamFactory;
+import com.github.upelsin.streamProxy.test.mocks.MockResumableForkedStreamFactory;
 import com.github.upelsin.streamProxy.test.rules.MockWebServerRule;
 import com.github.upelsin.streamProxy.test.rules.StreamProxyRule;
 import com.squareup.okhttp.mockwebserver.MockResponse;
 import com.squareup.okhttp.mockwebserver.RecordedRequest;
+import com.squareup.okhttp.mockwebserver.SocketPolicy;
 import okio.Buffer;
+import okio.BufferedSource;
+import okio.GzipSink;
+import okio.Okio;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static com.github.upelsin.streamProxy.test.StreamProxyTestUtils.*;
@@ -33,6 +62,8 @@ public class StreamProxyTest {
 
     private static final Buffer RESPONSE_BODY_MP3 = loadSampleMp3();
 
+    private static final String PLAYLIST = "#EXTM3U\n#EXT-X-TARGETDURATION:10\n#EXTINF:10,\nsegment0.ts\n";
+
     @Rule
     public Timeout globalTimeout = new Timeout(2000);
 
@@ -42,6 +73,9 @@ public class StreamProxyTest {
     @Rule
     public MockWebServerRule server = new MockWebServerRule();
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
 
     @Test
     public void should_serve_request() throws Exception {
@@ -128,6 +162,7 @@ public class StreamProxyTest {
         server.enqueue(new MockResponse().setBody(RESPONSE_BODY_MP3));
 
         readFully(conn.getInputStream());
+        assertTrue(forkedStream.awaitClosed());
         byte[] bytes = forkedStream.toByteArray();
 
         assertArrayEquals(RESPONSE_BODY_MP3.readByteArray(), bytes);
@@ -139,12 +174,866 @@ public class StreamProxyTest {
         HttpURLConnection conn = createUrlConnection(server.get(), proxy.get(), "?param1=abc&param2=def");
 
         readFully(conn.getInputStream());
-        Properties queryParams = ((MockForkedStreamFactory) proxy.getForkedStreamFactory()).getLatestQueryParams();
+        MockForkedStreamFactory factory = (MockForkedStreamFactory) proxy.getForkedStreamFactory();
+        assertTrue(factory.awaitCreated());
+        Properties queryParams = factory.getLatestQueryParams();
 
         assertThat(queryParams.getProperty("param1"), equalTo("abc"));
         assertThat(queryParams.getProperty("param2"), equalTo("def"));
     }
 
+    @Test
+    public void should_strip_id3_tag_from_response() throws Exception {
+        proxy.get().addTransformerFactory(new Id3StrippingTransformerFactory());
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()));
+
+        byte[] body = loadSampleMp3().readByteArray();
+        assertSuccessfulRequestFor(conn, Arrays.copyOfRange(body, 1001, body.length));
+    }
+
+    @Test
+    public void should_decode_gzipped_response() throws Exception {
+        proxy.get().addTransformerFactory(new GzipDecodingTransformerFactory());
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestProperty("Accept-Encoding", "gzip");
+
+        Buffer gzipped = new Buffer();
+        byte[] body = loadSampleMp3().readByteArray();
+        GzipSink gzipSink = new GzipSink(gzipped);
+        Okio.buffer(gzipSink).write(body).close();
+        server.enqueue(new MockResponse().setBody(gzipped).setHeader("Content-Encoding", "gzip"));
+
+        assertSuccessfulRequestFor(conn, body);
+        assertNull(conn.getHeaderField("Content-Encoding"));
+    }
+
+    @Test
+    public void should_serve_prefetched_bytes_then_fetch_remainder() throws Exception {
+        byte[] body = loadSampleMp3().readByteArray();
+        int prefetchBytes = 4096;
+        server.enqueue(new MockResponse()
+                .setResponseCode(HttpURLConnection.HTTP_PARTIAL)
+                .setHeader("Content-Range", String.format("bytes 0-%d/%d", prefetchBytes - 1, body.length))
+                .setHeader("ETag", "\"v1\"")
+                .setBody(new Buffer().write(body, 0, prefetchBytes)));
+        server.enqueue(new MockResponse()
+                .setResponseCode(HttpURLConnection.HTTP_PARTIAL)
+                .setBody(new Buffer().write(body, prefetchBytes, body.length - prefetchBytes)));
+
+        String url = server.getUrl("/").toString();
+        for (Future<?> future : proxy.get().warmUp(Collections.singletonList(url), prefetchBytes)) {
+            future.get();
+        }
+        assertEquals("bytes=0-4095", server.takeRequest().getHeader("Range"));
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        RecordedRequest remainder = assertSuccessfulRequestFor(conn, body);
+        assertEquals("bytes=4096-", remainder.getHeader("Range"));
+        assertEquals("\"v1\"", remainder.getHeader("If-Range"));
+    }
+
+    @Test
+    public void should_not_prefetch_beyond_memory_limit() throws Exception {
+        proxy.get().setResourceProfile(new ResourceProfile.Builder().memoryLimitBytes(2048).build());
+        byte[] body = loadSampleMp3().readByteArray();
+        int prefetchBytes = 4096;
+        server.enqueue(new MockResponse()
+                .setResponseCode(HttpURLConnection.HTTP_PARTIAL)
+                .setHeader("Content-Range", String.format("bytes 0-%d/%d", prefetchBytes - 1, body.length))
+                .setHeader("ETag", "\"v1\"")
+                .setBody(new Buffer().write(body, 0, prefetchBytes)));
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+
+        String url = server.getUrl("/").toString();
+        for (Future<?> future : proxy.get().warmUp(Collections.singletonList(url), prefetchBytes)) {
+            future.get();
+        }
+        assertEquals("bytes=0-4095", server.takeRequest().getHeader("Range"));
+
+        RecordedRequest request = assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), body);
+        assertNull(request.getHeader("Range"));
+    }
+
+    @Test
+    public void should_track_and_cancel_session() throws Exception {
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()).throttleBody(16384, 1, TimeUnit.SECONDS));
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        InputStream is = conn.getInputStream();
+        is.read();
+
+        List<SessionSnapshot> sessions = proxy.get().getSessions();
+        assertEquals(1, sessions.size());
+        SessionSnapshot session = sessions.get(0);
+        assertEquals(SessionSnapshot.State.RELAYING, session.getState());
+        assertEquals(SessionSnapshot.ForkState.RECORDING, session.getForkState());
+        assertEquals(server.getUrl("/").toString(), session.getUrl());
+
+        assertTrue(proxy.get().cancelSession(session.getId()));
+        try {
+            assertTrue(readFully(is).length < loadSampleMp3().size());
+        } catch (IOException expected) {
+            // connection dropped
+        }
+
+        while (!proxy.get().getSessions().isEmpty()) {
+            Thread.sleep(10);
+        }
+        assertFalse(proxy.get().cancelSession(session.getId()));
+    }
+
+    @Test
+    public void should_show_aborted_forked_stream_of_session() throws Exception {
+        given(proxy.getForkedStreamFactory().createForkedStream(any(Properties.class))).willReturn(
+                new MockForkedStream(new Properties()) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        throw new IOException("Disk full");
+                    }
+                });
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()).throttleBody(16384, 1, TimeUnit.SECONDS));
+        InputStream is = createUrlConnection(server.get(), proxy.get()).getInputStream();
+        is.read();
+
+        while (proxy.get().getSessions().get(0).getForkState() != SessionSnapshot.ForkState.ABORTED) {
+            Thread.sleep(10);
+        }
+        assertEquals(SessionSnapshot.State.RELAYING, proxy.get().getSessions().get(0).getState());
+        is.close();
+    }
+
+    @Test
+    public void should_cancel_upstream_call_when_client_disconnects() throws Exception {
+        ServerSocket upstream = new ServerSocket(0); // never responds, unlike MockWebServer it shows the close
+        try {
+            Socket client = new Socket("127.0.0.1", proxy.getPort());
+            String url = "http://127.0.0.1:" + upstream.getLocalPort() + "/";
+            client.getOutputStream().write(String.format("GET /%s HTTP/1.1\r\n\r\n", url).getBytes("UTF-8"));
+
+            Socket upstreamConnection = upstream.accept();
+            BufferedSource request = Okio.buffer(Okio.source(upstreamConnection));
+            while (request.readUtf8LineStrict().length() != 0) {
+                // skip request headers
+            }
+            client.close();
+
+            upstreamConnection.setSoTimeout(1000);
+            assertTrue(request.exhausted()); // connection closed by the proxy rather than left waiting
+            while (!proxy.get().getSessions().isEmpty()) {
+                Thread.sleep(10);
+            }
+
+        } finally {
+            upstream.close();
+        }
+    }
+
+    @Test
+    public void should_answer_conditional_request_for_fresh_resource_without_upstream() throws Exception {
+        server.enqueue(new MockResponse()
+                .setBody(loadSampleMp3())
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "max-age=60"));
+        readFully(createUrlConnection(server.get(), proxy.get()).getInputStream());
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestProperty("If-None-Match", "\"v1\"");
+
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, conn.getResponseCode());
+        assertEquals("\"v1\"", conn.getHeaderField("ETag"));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void should_forward_conditional_request_for_stale_resource() throws Exception {
+        server.enqueue(new MockResponse()
+                .setBody(loadSampleMp3())
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "no-cache"));
+        server.enqueue(new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED));
+        readFully(createUrlConnection(server.get(), proxy.get()).getInputStream());
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestProperty("If-None-Match", "\"v1\"");
+
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, conn.getResponseCode());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void should_answer_head_request_from_cache() throws Exception {
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()).setHeader("Cache-Control", "max-age=60"));
+        readFully(createUrlConnection(server.get(), proxy.get()).getInputStream());
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestMethod("HEAD");
+
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals(loadSampleMp3().size(), Long.parseLong(conn.getHeaderField("Content-Length")));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void should_not_answer_head_request_from_metadata_of_untransformed_body() throws Exception {
+        proxy.get().addTransformerFactory(new Id3StrippingTransformerFactory());
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()).setHeader("Cache-Control", "max-age=60"));
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Length", loadSampleMp3().size())
+                .setHeader("Cache-Control", "max-age=60"));
+        readFully(createUrlConnection(server.get(), proxy.get()).getInputStream());
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestMethod("HEAD");
+
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertNull(conn.getHeaderField("Content-Length")); // stripping the tag changes it
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void should_not_answer_head_request_from_metadata_of_encoded_body() throws Exception {
+        Buffer gzipped = new Buffer();
+        Okio.buffer(new GzipSink(gzipped)).write(new byte[100 * 1000]).close();
+        server.enqueue(new MockResponse()
+                .setBody(gzipped)
+                .setHeader("Content-Encoding", "gzip")
+                .setHeader("Cache-Control", "max-age=60"));
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Length", 100 * 1000)
+                .setHeader("Cache-Control", "max-age=60"));
+        HttpURLConnection gzipConn = createUrlConnection(server.get(), proxy.get());
+        gzipConn.setRequestProperty("Accept-Encoding", "gzip");
+        readFully(gzipConn.getInputStream());
+        assertEquals("gzip", gzipConn.getHeaderField("Content-Encoding"));
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestMethod("HEAD");
+
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("100000", conn.getHeaderField("Content-Length"));
+        assertNull(conn.getHeaderField("Content-Encoding"));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void should_forward_head_request_without_fetching_body() throws Exception {
+        server.enqueue(new MockResponse().setHeader("Content-Length", "4096"));
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestMethod("HEAD");
+
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("4096", conn.getHeaderField("Content-Length"));
+        assertEquals("HEAD / HTTP/1.1", server.takeRequest().getRequestLine());
+    }
+
+    @Test
+    public void should_revalidate_stale_metadata_with_conditional_head() throws Exception {
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()).setHeader("ETag", "\"v1\""));
+        server.enqueue(new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED));
+        readFully(createUrlConnection(server.get(), proxy.get()).getInputStream());
+        server.takeRequest();
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestMethod("HEAD");
+
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("\"v1\"", conn.getHeaderField("ETag"));
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void should_answer_options_request() throws Exception {
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestMethod("OPTIONS");
+
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("GET, HEAD, OPTIONS", conn.getHeaderField("Allow"));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void should_reject_unsupported_method() throws Exception {
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestMethod("DELETE");
+
+        assertEquals(HttpURLConnection.HTTP_BAD_METHOD, conn.getResponseCode());
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void should_not_delay_client_while_forked_stream_is_being_created() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final MockForkedStream forkedStream = new MockForkedStream(new Properties());
+        given(proxy.getForkedStreamFactory().createForkedStream(any(Properties.class))).willAnswer(
+                new Answer<ForkedStream>() {
+                    @Override
+                    public ForkedStream answer(InvocationOnMock invocation) {
+                        await(release);
+                        return forkedStream;
+                    }
+                });
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()));
+
+        byte[] body = loadSampleMp3().readByteArray();
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), body);
+        release.countDown();
+
+        assertTrue(forkedStream.awaitClosed());
+        assertArrayEquals(body, forkedStream.toByteArray());
+    }
+
+    @Test
+    public void should_slow_client_down_rather_than_abort_forked_stream_which_falls_behind() throws Exception {
+        MockForkedStream forkedStream = slowForkedStream();
+        given(proxy.getForkedStreamFactory().createForkedStream(any(Properties.class))).willReturn(forkedStream);
+        byte[] body = new byte[6 * 1024 * 1024]; // more than a forked stream may fall behind by
+        new Random(1).nextBytes(body);
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+
+        // assertArrayEquals() is too slow for that many bytes
+        assertTrue(Arrays.equals(body, readFully(createUrlConnection(server.get(), proxy.get()).getInputStream())));
+
+        assertTrue(forkedStream.awaitClosed());
+        assertFalse(forkedStream.isAborted());
+        assertTrue(Arrays.equals(body, forkedStream.toByteArray()));
+    }
+
+    @Test
+    public void should_relay_chunked_response() throws Exception {
+        server.enqueue(new MockResponse().setChunkedBody(loadSampleMp3(), 4096));
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+
+        assertSuccessfulRequestFor(conn, loadSampleMp3().readByteArray());
+        assertEquals("chunked", conn.getHeaderField("Transfer-Encoding"));
+    }
+
+    @Test
+    public void should_keep_content_length_of_untransformed_response() throws Exception {
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()));
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+
+        byte[] body = loadSampleMp3().readByteArray();
+        assertSuccessfulRequestFor(conn, body);
+        assertEquals(body.length, conn.getContentLength());
+        assertNull(conn.getHeaderField("Transfer-Encoding"));
+        assertEquals("close", conn.getHeaderField("Connection"));
+    }
+
+    @Test
+    public void should_delimit_response_of_unknown_length_by_closing_connection_for_http10_client() throws Exception {
+        server.enqueue(new MockResponse().setChunkedBody(loadSampleMp3(), 4096));
+
+        Socket client = new Socket("127.0.0.1", proxy.getPort());
+        String request = String.format("GET /%s HTTP/1.0\r\n\r\n", server.getUrl("/"));
+        client.getOutputStream().write(request.getBytes("UTF-8"));
+        String response = new String(readFully(client.getInputStream()), "ISO-8859-1");
+        client.close();
+
+        String headers = response.substring(0, response.indexOf("\r\n\r\n"));
+        assertTrue(headers.startsWith("HTTP/1.1 200 OK"));
+        assertFalse(headers.contains("Transfer-Encoding"));
+        assertEquals(loadSampleMp3().size(), response.length() - headers.length() - 4);
+    }
+
+    @Test
+    public void should_ask_upstream_for_identity_encoding_when_compression_disabled() throws Exception {
+        proxy.get().setUpstreamCompression(false);
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()));
+
+        RecordedRequest request = assertSuccessfulRequestFor(
+                createUrlConnection(server.get(), proxy.get()), loadSampleMp3().readByteArray());
+        assertEquals("identity", request.getHeader("Accept-Encoding"));
+    }
+
+    @Test
+    public void should_resume_interrupted_recording() throws Exception {
+        byte[] body = loadSampleMp3().readByteArray();
+        int recorded = 100000;
+        String url = server.getUrl("/").toString();
+        RecordingJournal journal = new RecordingJournal(folder.newFile());
+        journal.begin(url, body.length, "\"v1\"");
+        journal.progress(url, recorded);
+
+        MockResumableForkedStreamFactory factory =
+                new MockResumableForkedStreamFactory(Arrays.copyOf(body, recorded));
+        StreamProxy resumingProxy = new StreamProxy(factory);
+        resumingProxy.setRecordingJournal(journal);
+        resumingProxy.start();
+
+        try {
+            server.enqueue(new MockResponse()
+                    .setResponseCode(HttpURLConnection.HTTP_PARTIAL)
+                    .setHeader("Content-Range", String.format("bytes %d-%d/%d", recorded, body.length - 1, body.length))
+                    .setHeader("ETag", "\"v1\"")
+                    .setBody(new Buffer().write(body, recorded, body.length - recorded)));
+
+            RecordedRequest request = assertSuccessfulRequestFor(createUrlConnection(server.get(), resumingProxy), body);
+            assertEquals("bytes=100000-", request.getHeader("Range"));
+            assertEquals("\"v1\"", request.getHeader("If-Range"));
+
+            assertTrue(factory.getLatestStream().awaitClosed());
+            assertEquals(recorded, factory.getResumedFrom());
+            assertArrayEquals(Arrays.copyOfRange(body, recorded, body.length), factory.getLatestStream().toByteArray());
+            assertTrue(journal.get(url).isComplete());
+
+        } finally {
+            resumingProxy.shutdown();
+        }
+    }
+
+    @Test
+    public void should_relay_and_fork_response_with_low_power_profile() throws Exception {
+        MockForkedStream forkedStream = new MockForkedStream(new Properties());
+        ForkedStreamFactory factory = mock(ForkedStreamFactory.class);
+        given(factory.createForkedStream(any(Properties.class))).willReturn(forkedStream);
+        StreamProxy lowPowerProxy = new StreamProxy(factory);
+        lowPowerProxy.setResourceProfile(ResourceProfile.lowPower());
+        lowPowerProxy.start();
+
+        try {
+            server.enqueue(new MockResponse().setBody(loadSampleMp3()));
+            byte[] body = loadSampleMp3().readByteArray();
+            assertSuccessfulRequestFor(createUrlConnection(server.get(), lowPowerProxy), body);
+
+            assertTrue(forkedStream.awaitClosed());
+            assertArrayEquals(body, forkedStream.toByteArray());
+
+        } finally {
+            lowPowerProxy.shutdown();
+        }
+    }
+
+    @Test
+    public void should_not_keep_response_in_hot_cache_beyond_memory_limit() throws Exception {
+        proxy.get().setResourceProfile(new ResourceProfile.Builder()
+                .memoryLimitBytes(8 * 1024)
+                .chunkSizeBounds(4 * 1024, 64 * 1024)
+                .build());
+        proxy.get().setHotCache(1024 * 1024, 64 * 1024);
+        byte[] body = new byte[6 * 1024];
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)).setHeader("Cache-Control", "max-age=60"));
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)).setHeader("Cache-Control", "max-age=60"));
+
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), body);
+        awaitSessionsClosed();
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), body);
+
+        assertEquals(2, server.get().getRequestCount());
+    }
+
+    @Test
+    public void should_not_journal_response_which_is_not_recorded() throws Exception {
+        RecordingJournal journal = new RecordingJournal(folder.newFile());
+        ResumableForkedStreamFactory factory = mock(ResumableForkedStreamFactory.class); // creates no streams
+        StreamProxy journalingProxy = new StreamProxy(factory);
+        journalingProxy.setRecordingJournal(journal);
+        journalingProxy.start();
+
+        try {
+            server.enqueue(new MockResponse().setBody(loadSampleMp3()).setHeader("ETag", "\"v1\""));
+            assertSuccessfulRequestFor(createUrlConnection(server.get(), journalingProxy),
+                    loadSampleMp3().readByteArray());
+
+            verify(factory, timeout(1000)).createForkedStream(any(Properties.class));
+            assertNull(journal.get(server.getUrl("/").toString()));
+
+        } finally {
+            journalingProxy.shutdown();
+        }
+    }
+
+    @Test
+    public void should_trace_phases_of_request() throws Exception {
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()));
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), loadSampleMp3().readByteArray());
+
+        while (proxy.get().getRecentTraces().isEmpty()) {
+            Thread.sleep(10);
+        }
+        RequestTrace trace = proxy.get().getRecentTraces().get(0);
+        assertEquals("GET " + server.getUrl("/"), trace.getRequest());
+        for (RequestTrace.Phase phase : RequestTrace.Phase.values()) {
+            assertTrue(phase + " is missing", trace.getPhaseNanos(phase) >= 0);
+        }
+        assertTrue(trace.getPhaseNanos(RequestTrace.Phase.UPSTREAM_CONNECT)
+                <= trace.getPhaseNanos(RequestTrace.Phase.UPSTREAM_HEADERS));
+        assertTrue(trace.getTimeToFirstByteNanos() <= trace.getTotalNanos());
+    }
+
+    @Test
+    public void should_serve_recent_traces_to_local_client() throws Exception {
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()));
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), loadSampleMp3().readByteArray());
+        while (proxy.get().getRecentTraces().isEmpty()) {
+            Thread.sleep(10);
+        }
+        long id = proxy.get().getRecentTraces().get(0).getId();
+
+        URL url = new URL(String.format("http://127.0.0.1:%d%s", proxy.getPort(), StreamProxy.TRACES_PATH));
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        String traces = new String(readFully(conn.getInputStream()), "UTF-8");
+
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertTrue(traces, traces.startsWith("#" + id + " GET " + server.getUrl("/")));
+        assertEquals(1, server.get().getRequestCount()); // traces are not fetched from upstream
+    }
+
+    @Test
+    public void should_record_more_concurrent_streams_than_workers() throws Exception {
+        final List<MockForkedStream> forkedStreams = Collections.synchronizedList(new ArrayList<MockForkedStream>());
+        ForkedStreamFactory factory = mock(ForkedStreamFactory.class);
+        given(factory.createForkedStream(any(Properties.class))).willAnswer(new Answer<ForkedStream>() {
+            @Override
+            public ForkedStream answer(InvocationOnMock invocation) {
+                MockForkedStream forkedStream = new MockForkedStream((Properties) invocation.getArguments()[0]);
+                forkedStreams.add(forkedStream);
+                return forkedStream;
+            }
+        });
+        final StreamProxy boundedProxy = new StreamProxy(factory);
+        boundedProxy.setResourceProfile(new ResourceProfile.Builder()
+                .workerThreads(2)
+                .memoryLimitBytes(512 * 1024)
+                .chunkSizeBounds(4 * 1024, 16 * 1024)
+                .build());
+        boundedProxy.start();
+
+        try {
+            final byte[] body = loadSampleMp3().readByteArray();
+            final CountDownLatch finished = new CountDownLatch(3);
+            for (int i = 0; i < 3; i++) {
+                server.enqueue(new MockResponse().setBody(loadSampleMp3()).throttleBody(65536, 20, TimeUnit.MILLISECONDS));
+            }
+            for (int i = 0; i < 3; i++) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        assertSuccessfulRequestFor(createUrlConnection(server.get(), boundedProxy), body);
+                        finished.countDown();
+                    }
+                }).start();
+            }
+            await(finished);
+
+            assertEquals(3, forkedStreams.size());
+            for (MockForkedStream forkedStream : forkedStreams) {
+                assertTrue(forkedStream.awaitClosed());
+                assertFalse(forkedStream.isAborted());
+                assertArrayEquals(body, forkedStream.toByteArray());
+            }
+
+        } finally {
+            boundedProxy.shutdown();
+        }
+    }
+
+    @Test
+    public void should_reject_connection_when_no_worker_is_free() throws Exception {
+        StreamProxy boundedProxy = new StreamProxy(proxy.getForkedStreamFactory());
+        boundedProxy.setResourceProfile(new ResourceProfile.Builder().workerThreads(1).pendingSessions(0).build());
+        boundedProxy.start();
+
+        try {
+            server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+            Socket busy = new Socket("127.0.0.1", boundedProxy.getPort());
+            busy.getOutputStream().write(String.format("GET /%s HTTP/1.1\r\n\r\n", server.getUrl("/")).getBytes("UTF-8"));
+            server.takeRequest(); // the only worker waits for upstream
+
+            Socket rejected = new Socket("127.0.0.1", boundedProxy.getPort());
+            BufferedSource response = Okio.buffer(Okio.source(rejected));
+            assertEquals("HTTP/1.1 503 Service Unavailable", response.readUtf8LineStrict());
+            assertTrue(response.readUtf8().contains("Retry-After: 1"));
+            assertEquals(1, boundedProxy.getSessions().size());
+            busy.close();
+
+        } finally {
+            boundedProxy.shutdown();
+        }
+    }
+
+    @Test
+    public void should_close_sessions_waiting_for_worker_on_shutdown() throws Exception {
+        StreamProxy boundedProxy = new StreamProxy(proxy.getForkedStreamFactory());
+        boundedProxy.setResourceProfile(new ResourceProfile.Builder().workerThreads(1).pendingSessions(1).build());
+        boundedProxy.start();
+
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.NO_RESPONSE));
+        Socket busy = new Socket("127.0.0.1", boundedProxy.getPort());
+        busy.getOutputStream().write(String.format("GET /%s HTTP/1.1\r\n\r\n", server.getUrl("/")).getBytes("UTF-8"));
+        server.takeRequest();
+        Socket pending = new Socket("127.0.0.1", boundedProxy.getPort());
+        while (boundedProxy.getSessions().size() < 2) {
+            Thread.sleep(10);
+        }
+
+        boundedProxy.shutdown();
+        assertEquals(-1, pending.getInputStream().read());
+        while (!boundedProxy.getSessions().isEmpty()) {
+            Thread.sleep(10);
+        }
+        busy.close();
+    }
+
+    @Test
+    public void should_give_memory_of_replaced_hot_cache_back_to_budget() throws Exception {
+        MockForkedStream first = new MockForkedStream(new Properties());
+        MockForkedStream second = new MockForkedStream(new Properties());
+        given(proxy.getForkedStreamFactory().createForkedStream(any(Properties.class))).willReturn(first, second);
+        proxy.get().setHotCache(1024 * 1024, 64 * 1024);
+        byte[] cached = new byte[16 * 1024];
+        byte[] body = new byte[8 * 1024];
+        server.enqueue(new MockResponse().setBody(new Buffer().write(cached)).setHeader("Cache-Control", "max-age=60"));
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), cached);
+        awaitSessionsClosed();
+        assertTrue(first.awaitClosed());
+
+        // cached body alone would leave no room for queued fork data
+        proxy.get().setHotCache(0, 0);
+        proxy.get().setResourceProfile(new ResourceProfile.Builder()
+                .memoryLimitBytes(20 * 1024)
+                .chunkSizeBounds(4 * 1024, 4 * 1024)
+                .build());
+
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), body);
+        assertTrue(second.awaitClosed());
+        assertFalse(second.isAborted());
+        assertArrayEquals(body, second.toByteArray());
+    }
+
+    @Test
+    public void should_not_abort_forked_stream_when_hot_cache_holds_memory() throws Exception {
+        proxy.get().setResourceProfile(new ResourceProfile.Builder()
+                .memoryLimitBytes(1024 * 1024)
+                .chunkSizeBounds(4 * 1024, 64 * 1024)
+                .build());
+        proxy.get().setHotCache(1024 * 1024, 256 * 1024);
+        byte[] cached = new byte[200 * 1000];
+        for (int i = 0; i < 4; i++) {
+            server.enqueue(new MockResponse()
+                    .setBody(new Buffer().write(cached))
+                    .setHeader("Cache-Control", "max-age=60"));
+            readFully(createUrlConnection(server.get(), proxy.get(), "?cached=" + i).getInputStream());
+            awaitSessionsClosed();
+        }
+
+        MockForkedStream forkedStream = slowForkedStream();
+        given(proxy.getForkedStreamFactory().createForkedStream(any(Properties.class))).willReturn(forkedStream);
+        byte[] body = new byte[1000 * 1000];
+        new Random(1).nextBytes(body);
+        server.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+
+        assertTrue(Arrays.equals(body, readFully(createUrlConnection(server.get(), proxy.get()).getInputStream())));
+
+        assertTrue(forkedStream.awaitClosed());
+        assertFalse(forkedStream.isAborted());
+        assertTrue(Arrays.equals(body, forkedStream.toByteArray()));
+    }
+
+    @Test
+    public void should_serve_fresh_response_from_hot_cache() throws Exception {
+        proxy.get().setHotCache(1024 * 1024, 64 * 1024);
+        server.enqueue(new MockResponse()
+                .setBody(PLAYLIST)
+                .setHeader("Content-Type", "application/vnd.apple.mpegurl")
+                .setHeader("Cache-Control", "max-age=60"));
+
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), PLAYLIST.getBytes("UTF-8"));
+        awaitSessionsClosed();
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        assertArrayEquals(PLAYLIST.getBytes("UTF-8"), readFully(conn.getInputStream()));
+        assertEquals("application/vnd.apple.mpegurl", conn.getHeaderField("Content-Type"));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void should_revalidate_stale_response_in_hot_cache() throws Exception {
+        proxy.get().setHotCache(1024 * 1024, 64 * 1024);
+        server.enqueue(new MockResponse()
+                .setBody(PLAYLIST)
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "no-cache"));
+        server.enqueue(new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED));
+
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), PLAYLIST.getBytes("UTF-8"));
+        awaitSessionsClosed();
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        assertArrayEquals(PLAYLIST.getBytes("UTF-8"), readFully(conn.getInputStream()));
+        assertEquals(HttpURLConnection.HTTP_OK, conn.getResponseCode());
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void should_not_keep_large_response_in_hot_cache() throws Exception {
+        proxy.get().setHotCache(1024 * 1024, 64 * 1024);
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()).setHeader("Cache-Control", "max-age=60"));
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()).setHeader("Cache-Control", "max-age=60"));
+
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), loadSampleMp3().readByteArray());
+        awaitSessionsClosed();
+
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), loadSampleMp3().readByteArray());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void should_serve_gzipped_response_from_hot_cache() throws Exception {
+        proxy.get().setHotCache(1024 * 1024, 64 * 1024);
+        Buffer gzipped = new Buffer();
+        Okio.buffer(new GzipSink(gzipped)).writeUtf8(PLAYLIST).close();
+        server.enqueue(new MockResponse()
+                .setBody(gzipped)
+                .setHeader("Content-Encoding", "gzip")
+                .setHeader("Cache-Control", "max-age=60"));
+
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), PLAYLIST.getBytes("UTF-8"));
+        awaitSessionsClosed();
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        assertArrayEquals(PLAYLIST.getBytes("UTF-8"), readFully(conn.getInputStream()));
+        assertEquals(PLAYLIST.length(), conn.getContentLength());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void should_not_share_private_responses_in_hot_cache() throws Exception {
+        proxy.get().setHotCache(1024 * 1024, 64 * 1024);
+        server.enqueue(new MockResponse().setBody(PLAYLIST).setHeader("Cache-Control", "private, max-age=60"));
+        server.enqueue(new MockResponse().setBody(PLAYLIST).setHeader("Cache-Control", "max-age=60")
+                .setHeader("Set-Cookie", "session=1"));
+        server.enqueue(new MockResponse().setBody(PLAYLIST).setHeader("Cache-Control", "max-age=60"));
+        server.enqueue(new MockResponse().setBody(PLAYLIST).setHeader("Cache-Control", "max-age=60"));
+
+        for (int i = 0; i < 2; i++) {
+            assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), PLAYLIST.getBytes("UTF-8"));
+            awaitSessionsClosed();
+        }
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestProperty("Cookie", "session=1");
+        assertSuccessfulRequestFor(conn, PLAYLIST.getBytes("UTF-8"));
+        awaitSessionsClosed();
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), PLAYLIST.getBytes("UTF-8"));
+
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void should_revalidate_hot_cache_entry_if_client_asks_for_no_cache() throws Exception {
+        proxy.get().setHotCache(1024 * 1024, 64 * 1024);
+        server.enqueue(new MockResponse()
+                .setBody(PLAYLIST)
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Cache-Control", "max-age=60"));
+        server.enqueue(new MockResponse().setResponseCode(HttpURLConnection.HTTP_NOT_MODIFIED));
+
+        assertSuccessfulRequestFor(createUrlConnection(server.get(), proxy.get()), PLAYLIST.getBytes("UTF-8"));
+        awaitSessionsClosed();
+
+        HttpURLConnection conn = createUrlConnection(server.get(), proxy.get());
+        conn.setRequestProperty("Cache-Control", "no-cache");
+        assertArrayEquals(PLAYLIST.getBytes("UTF-8"), readFully(conn.getInputStream()));
+        assertEquals("\"v1\"", server.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void should_serve_file_with_file_transport() throws Exception {
+        byte[] body = loadSampleMp3().readByteArray();
+        File file = folder.newFile("track.mp3");
+        loadSampleMp3().copyTo(new FileOutputStream(file)).close();
+        proxy.get().setUpstreamTransport("file", new FileTransport(folder.getRoot()));
+
+        HttpURLConnection conn = createProxiedConnection(file.toURI().toString());
+        assertArrayEquals(body, readFully(conn.getInputStream()));
+        assertEquals("audio/mpeg", conn.getHeaderField("Content-Type"));
+
+        conn = createProxiedConnection(file.toURI().toString());
+        conn.setRequestProperty("Range", "bytes=1000-1999");
+        assertArrayEquals(Arrays.copyOfRange(body, 1000, 2000), readFully(conn.getInputStream()));
+        assertEquals(HttpURLConnection.HTTP_PARTIAL, conn.getResponseCode());
+        assertEquals("bytes 1000-1999/" + body.length, conn.getHeaderField("Content-Range"));
+    }
+
+    @Test
+    public void should_forbid_files_outside_of_file_transport_root() throws Exception {
+        proxy.get().setUpstreamTransport("file", new FileTransport(folder.newFolder()));
+
+        HttpURLConnection conn = createProxiedConnection(folder.newFile().toURI().toString());
+        assertEquals(HttpURLConnection.HTTP_FORBIDDEN, conn.getResponseCode());
+    }
+
+    @Test
+    public void should_serve_resource_with_in_memory_transport() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        transport.put("mem://bench/playlist.m3u8", PLAYLIST.getBytes("UTF-8"), "application/vnd.apple.mpegurl");
+        proxy.get().setUpstreamTransport("mem", transport);
+
+        HttpURLConnection conn = createProxiedConnection("mem://bench/playlist.m3u8");
+        assertArrayEquals(PLAYLIST.getBytes("UTF-8"), readFully(conn.getInputStream()));
+        assertEquals(0, server.getRequestCount());
+
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, createProxiedConnection("mem://bench/none").getResponseCode());
+    }
+
+    @Test
+    public void should_shrink_chunks_of_slowly_arriving_response() throws Exception {
+        proxy.get().setChunkSizeBounds(4096, 65536);
+        server.enqueue(new MockResponse().setBody(loadSampleMp3()).throttleBody(64, 10, TimeUnit.MILLISECONDS));
+        InputStream is = createUrlConnection(server.get(), proxy.get()).getInputStream();
+        is.read();
+
+        while (proxy.get().getSessions().get(0).getChunkSize() != 4096) {
+            Thread.sleep(10);
+        }
+        is.close();
+    }
+
+    @Test
+    public void should_grow_chunks_of_fast_response() throws Exception {
+        InMemoryTransport transport = new InMemoryTransport();
+        byte[] body = new byte[16 * 1024 * 1024];
+        transport.put("mem://bench/large", body, "application/octet-stream");
+        proxy.get().setUpstreamTransport("mem", transport);
+        proxy.get().setChunkSizeBounds(4096, 65536);
+
+        InputStream is = createProxiedConnection("mem://bench/large").getInputStream();
+        is.read();
+
+        while (proxy.get().getSessions().get(0).getChunkSize() != 65536) {
+            is.read(new byte[65536]);
+        }
+        is.close();
+    }
+
+    private HttpURLConnection createProxiedConnection(String url) throws IOException {
+        return (HttpURLConnection) new URL(String.format("http://127.0.0.1:%d/%s", proxy.getPort(), url))
+                .openConnection();
+    }
+
+    /** Writes at 16 MB/s, slower than upstream. */
+    private static MockForkedStream slowForkedStream() {
+        return new MockForkedStream(new Properties()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    Thread.sleep(len / (16 * 1024));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                super.write(b, off, len);
+            }
+        };
+    }
+
+    private void awaitSessionsClosed() throws InterruptedException {
+        while (!proxy.get().getSessions().isEmpty()) {
+            Thread.sleep(10);
+        }
+    }
+
     private RecordedRequest assertSuccessfulRequestFor(HttpURLConnection connection, byte[] expectedBody) {
         try {
             byte[] responseBody = readFully(connection.getInputStream());
@@ -5,6 +5,8 @@ import com.github.upelsin.streamProxy.ForkedStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -18,7 +20,11 @@ public class MockForkedStream implements ForkedStream {
 
     private final ByteArrayOutputStream delegate;
 
-    private boolean aborted;
+    private final CountDownLatch closed = new CountDownLatch(1);
+
+    private final CountDownLatch abortedLatch = new CountDownLatch(1);
+
+    private volatile boolean aborted;
 
     public MockForkedStream(Properties props) {
         this.props = props;
@@ -28,6 +34,7 @@ public class MockForkedStream implements ForkedStream {
     @Override
     public void abort() {
         aborted = true;
+        abortedLatch.countDown();
         logger.info("Called abort()");
     }
 
@@ -39,6 +46,7 @@ public class MockForkedStream implements ForkedStream {
     @Override
     public void close() throws IOException {
         delegate.close();
+        closed.countDown();
     }
 
     @Override
@@ -53,4 +61,12 @@ public class MockForkedStream implements ForkedStream {
     public boolean isAborted() {
         return aborted;
     }
+
+    public boolean awaitAborted() throws InterruptedException {
+        return abortedLatch.await(1, TimeUnit.SECONDS);
+    }
+
+    public boolean awaitClosed() throws InterruptedException {
+        return closed.await(1, TimeUnit.SECONDS);
+    }
 }
@@ -4,20 +4,29 @@ import com.github.upelsin.streamProxy.ForkedStream;
 import com.github.upelsin.streamProxy.ForkedStreamFactory;
 
 import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by upelsin on 30.04.2015.
  */
 public class MockForkedStreamFactory implements ForkedStreamFactory {
 
-    private Properties lastProps;
+    private final CountDownLatch created = new CountDownLatch(1);
+
+    private volatile Properties lastProps;
 
     @Override
     public ForkedStream createForkedStream(Properties props) {
         this.lastProps = props;
+        created.countDown();
         return new MockForkedStream(props);
     }
 
+    public boolean awaitCreated() throws InterruptedException {
+        return created.await(1, TimeUnit.SECONDS);
+    }
+
     public Properties getLatestQueryParams() {
         return lastProps;
     }
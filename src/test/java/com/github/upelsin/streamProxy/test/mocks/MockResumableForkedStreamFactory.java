@@ -0,0 +1,46 @@
+package com.github.upelsin.streamProxy.test.mocks;
+
+import com.github.upelsin.streamProxy.ForkedStream;
+import com.github.upelsin.streamProxy.ResumableForkedStreamFactory;
+import okio.Buffer;
+import okio.Source;
+
+import java.util.Properties;
+
+public class MockResumableForkedStreamFactory extends MockForkedStreamFactory implements ResumableForkedStreamFactory {
+
+    private final byte[] recorded;
+
+    private volatile MockForkedStream latestStream;
+
+    private volatile long resumedFrom = -1;
+
+    public MockResumableForkedStreamFactory(byte[] recorded) {
+        this.recorded = recorded;
+    }
+
+    @Override
+    public ForkedStream createForkedStream(Properties props) {
+        super.createForkedStream(props);
+        return latestStream = new MockForkedStream(props);
+    }
+
+    @Override
+    public Source openRecorded(Properties props) {
+        return recorded != null ? new Buffer().write(recorded) : null;
+    }
+
+    @Override
+    public ForkedStream resumeForkedStream(Properties props, long offset) {
+        resumedFrom = offset;
+        return createForkedStream(props);
+    }
+
+    public MockForkedStream getLatestStream() {
+        return latestStream;
+    }
+
+    public long getResumedFrom() {
+        return resumedFrom;
+    }
+}